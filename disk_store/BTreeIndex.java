@@ -0,0 +1,828 @@
+package disk_store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * An ordered index kept on disk as a B+tree, in its own blocked file.
+ * Pages are read and written through a buffer pool, so only the pages
+ * in the pool are held in memory, and an index can be much larger than
+ * the heap.
+ *
+ * Changes reach the file when pages are written back by the pool, and
+ * all of them are saved by flush() and close().  An index file that was
+ * closed can be opened again with open().  Changes are not logged, so an
+ * index file that was not closed may be inconsistent after a crash, and
+ * should be rebuilt.
+ *
+ * Like OrdIndex, the index keeps a copy of an entry for each time it
+ * is inserted, and lookup() returns each value once.
+ *
+ */
+
+/* Implementation notes:
+ *  - Page 0 holds the metadata: file type, version, root page, number
+ *    of pages in the file, head of the free page list, and number of
+ *    entries.  The other pages are nodes or free pages.
+ *  - Node page layout: int type, int n, long next, then the entries.
+ *    A leaf has n entries (int key, long value), sorted by key and then
+ *    value, and next is its right sibling, or -1.  An inner node has
+ *    child 0, then n entries (int key, long value, long child); entry i
+ *    separates child i from child i+1.  Entries under child i are <=
+ *    entry i, and entries under child i+1 are >= it.  Copies of an entry
+ *    may lie on both sides of a separator, so delete() tries each child
+ *    whose range holds the entry.
+ *  - Entries are fixed size and contiguous, so shifting entries within
+ *    a page is one array copy.
+ *  - A full node is split in two before an entry is added.  A full leaf
+ *    at the right end of the tree that gets an entry at its end keeps its
+ *    entries, so that entries added in order leave full leaves behind.
+ *  - A node left with fewer than a quarter of its capacity by a delete
+ *    is merged with a sibling, or takes entries from it if the two don't
+ *    fit in one page.  Freed pages go on the free list, linked by next.
+ */
+
+public class BTreeIndex implements OrderedIndex, DiskIndex {
+
+	private static final int indexType = 2;       // file type (see SideFile)
+	private static final int indexVersion = 1;
+	private static final int defaultPoolFrames = 256;
+
+	// metadata page layout
+	private static final int metadataPage = 0;
+	private static final int fileTypePosition = 0;
+	private static final int versionPosition = fileTypePosition + Integer.BYTES;
+	private static final int rootPosition = versionPosition + Integer.BYTES;
+	private static final int numPagesPosition = rootPosition + Long.BYTES;
+	private static final int freeListPosition = numPagesPosition + Long.BYTES;
+	private static final int sizePosition = freeListPosition + Long.BYTES;
+
+	// node page layout
+	private static final int freePage = 0;
+	private static final int leafPage = 1;
+	private static final int innerPage = 2;
+	private static final int typePosition = 0;
+	private static final int countPosition = typePosition + Integer.BYTES;
+	private static final int nextPosition = countPosition + Integer.BYTES;
+	private static final int leafEntriesPosition = nextPosition + Long.BYTES;
+	private static final int child0Position = nextPosition + Long.BYTES;
+	private static final int innerEntriesPosition = child0Position + Long.BYTES;
+	private static final int leafEntrySize = Integer.BYTES + Long.BYTES;
+	private static final int innerEntrySize = Integer.BYTES + 2 * Long.BYTES;
+
+	private String filename;
+	private BlockedFile bf;
+	private BufferPool pool;
+	private int leafCapacity;
+	private int innerCapacity;
+
+	// copies of the metadata page
+	private long root;
+	private long numPages;
+	private long freeList;
+	private long size;
+
+	// the entry and the new page to add to the parent after a split
+	private int splitKey;
+	private long splitVal;
+	private long splitPage;
+
+	// private constructor
+	private BTreeIndex(String filename, BlockedFile bf, int poolFrames) {
+		this.filename = filename;
+		this.bf = bf;
+		pool = new BufferPool(bf, poolFrames);
+		leafCapacity = (bf.blockSize() - leafEntriesPosition) / leafEntrySize;
+		innerCapacity = (bf.blockSize() - innerEntriesPosition) / innerEntrySize;
+	}
+
+	/**
+	 * Create an empty index in the given file, replacing any existing
+	 * file with the same name.
+	 * @param filename
+	 * @return
+	 */
+	public static BTreeIndex create(String filename) {
+		return create(filename, defaultPoolFrames);
+	}
+
+	/**
+	 * Create an empty index in the given file, caching up to poolFrames
+	 * pages in memory.
+	 * @param filename
+	 * @param poolFrames
+	 * @return
+	 */
+	public static BTreeIndex create(String filename, int poolFrames) {
+		try {
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't replace index file "+filename);
+		}
+		BTreeIndex index = new BTreeIndex(filename, new BlockedFile(filename), poolFrames);
+		index.clear();
+		return index;
+	}
+
+	/**
+	 * Open an index file that was closed with close().
+	 * @param filename
+	 * @return
+	 */
+	public static BTreeIndex open(String filename) {
+		return open(filename, defaultPoolFrames);
+	}
+
+	/**
+	 * Open an index file that was closed with close(), caching up to
+	 * poolFrames pages in memory.
+	 * @param filename
+	 * @param poolFrames
+	 * @return
+	 */
+	public static BTreeIndex open(String filename, int poolFrames) {
+		BlockedFile bf = BlockedFile.open(filename);
+		BTreeIndex index = new BTreeIndex(filename, bf, poolFrames);
+		BlockBuffer meta = index.pool.pin(metadataPage);
+		ByteBuffer b = meta.buffer;
+		if (b.getInt(fileTypePosition) != indexType || b.getInt(versionPosition) != indexVersion) {
+			index.pool.unpin(metadataPage, false);
+			bf.close();
+			throw new IllegalStateException("Error: "+filename+" is not a version "+indexVersion+" B+tree index");
+		}
+		index.root = b.getLong(rootPosition);
+		index.numPages = b.getLong(numPagesPosition);
+		index.freeList = b.getLong(freeListPosition);
+		index.size = b.getLong(sizePosition);
+		index.pool.unpin(metadataPage, false);
+		return index;
+	}
+
+	@Override
+	public void clear() {
+		numPages = 1;
+		freeList = -1;
+		size = 0;
+		root = allocatePage(leafPage);
+		pool.unpin(root, true);
+	}
+
+	@Override
+	public void flush() {
+		BlockBuffer meta = pool.pinNew(metadataPage);
+		ByteBuffer b = meta.buffer;
+		b.putInt(fileTypePosition, indexType);
+		b.putInt(versionPosition, indexVersion);
+		b.putLong(rootPosition, root);
+		b.putLong(numPagesPosition, numPages);
+		b.putLong(freeListPosition, freeList);
+		b.putLong(sizePosition, size);
+		pool.unpin(metadataPage, true);
+		pool.flush();
+		bf.force();
+	}
+
+	@Override
+	public void close() {
+		flush();
+		pool.close();
+		bf.close();
+	}
+
+	@Override
+	public void drop() {
+		pool.close();
+		bf.close();
+		try {
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return the number of entries in the index.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Return the buffer pool that caches the pages of the index.
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	// --- page helpers ---
+
+	// Pin a new, empty node page of the given type and return its number.
+	// A page from the free list is used if there is one.
+	private long allocatePage(int type) {
+		long page;
+		if (freeList >= 0) {
+			page = freeList;
+			freeList = pool.pin(page).buffer.getLong(nextPosition);
+			pool.unpin(page, false);
+		} else {
+			page = numPages++;
+		}
+		ByteBuffer b = pool.pinNew(page).buffer;
+		b.putInt(typePosition, type);
+		b.putLong(nextPosition, -1);
+		return page;
+	}
+
+	// put a pinned page on the free list, and unpin it
+	private void freePage(long page, ByteBuffer b) {
+		b.putInt(typePosition, freePage);
+		b.putInt(countPosition, 0);
+		b.putLong(nextPosition, freeList);
+		freeList = page;
+		pool.unpin(page, true);
+	}
+
+	// compare entry (k1, v1) with entry (k2, v2)
+	private static int compare(int k1, long v1, int k2, long v2) {
+		return (k1 != k2) ? Integer.compare(k1, k2) : Long.compare(v1, v2);
+	}
+
+	private static boolean isLeaf(ByteBuffer b) {
+		return b.getInt(typePosition) == leafPage;
+	}
+
+	private static int count(ByteBuffer b) {
+		return b.getInt(countPosition);
+	}
+
+	private static int leafKey(ByteBuffer b, int i) {
+		return b.getInt(leafEntriesPosition + i * leafEntrySize);
+	}
+
+	private static long leafVal(ByteBuffer b, int i) {
+		return b.getLong(leafEntriesPosition + i * leafEntrySize + Integer.BYTES);
+	}
+
+	private static int innerKey(ByteBuffer b, int i) {
+		return b.getInt(innerEntriesPosition + i * innerEntrySize);
+	}
+
+	private static long innerVal(ByteBuffer b, int i) {
+		return b.getLong(innerEntriesPosition + i * innerEntrySize + Integer.BYTES);
+	}
+
+	// return child i of an inner node
+	private static long child(ByteBuffer b, int i) {
+		if (i == 0) {
+			return b.getLong(child0Position);
+		}
+		return b.getLong(innerEntriesPosition + (i-1) * innerEntrySize + Integer.BYTES + Long.BYTES);
+	}
+
+	private static int entrySize(ByteBuffer b) {
+		return isLeaf(b) ? leafEntrySize : innerEntrySize;
+	}
+
+	private static int entriesPosition(ByteBuffer b) {
+		return isLeaf(b) ? leafEntriesPosition : innerEntriesPosition;
+	}
+
+	// Return the number of entries of a node that are < (key, val), or
+	// <= (key, val) if orEqual is true.
+	private static int search(ByteBuffer b, int key, long val, boolean orEqual) {
+		boolean leaf = isLeaf(b);
+		int l = 0;
+		int r = count(b);
+		while (l < r) {
+			int mid = (l + r) >>> 1;
+			int c = leaf ? compare(leafKey(b, mid), leafVal(b, mid), key, val)
+					: compare(innerKey(b, mid), innerVal(b, mid), key, val);
+			if (c < 0 || (orEqual && c == 0)) {
+				l = mid + 1;
+			} else {
+				r = mid;
+			}
+		}
+		return l;
+	}
+
+	// Write entry i of a node.  For an inner node, child is the child to
+	// the right of the entry.
+	private static void putEntry(ByteBuffer b, int i, int key, long val, long child) {
+		if (isLeaf(b)) {
+			int pos = leafEntriesPosition + i * leafEntrySize;
+			b.putInt(pos, key);
+			b.putLong(pos + Integer.BYTES, val);
+		} else {
+			int pos = innerEntriesPosition + i * innerEntrySize;
+			b.putInt(pos, key);
+			b.putLong(pos + Integer.BYTES, val);
+			b.putLong(pos + Integer.BYTES + Long.BYTES, child);
+		}
+	}
+
+	// insert an entry at position i of a node that has room for it
+	private static void insertEntry(ByteBuffer b, int i, int key, long val, long child) {
+		int n = count(b);
+		int size = entrySize(b);
+		int pos = entriesPosition(b) + i * size;
+		System.arraycopy(b.array(), pos, b.array(), pos + size, (n - i) * size);
+		b.putInt(countPosition, n + 1);
+		putEntry(b, i, key, val, child);
+	}
+
+	// remove entry i of a node
+	private static void removeEntry(ByteBuffer b, int i) {
+		int n = count(b);
+		int size = entrySize(b);
+		int pos = entriesPosition(b) + i * size;
+		System.arraycopy(b.array(), pos + size, b.array(), pos, (n - i - 1) * size);
+		b.putInt(countPosition, n - 1);
+	}
+
+	// move the entries of src from position from on to the end of dest
+	private static void moveEntries(ByteBuffer src, int from, ByteBuffer dest) {
+		int n = count(src);
+		int d = count(dest);
+		int size = entrySize(src);
+		int pos = entriesPosition(src);
+		System.arraycopy(src.array(), pos + from * size, dest.array(), pos + d * size, (n - from) * size);
+		dest.putInt(countPosition, d + n - from);
+		src.putInt(countPosition, from);
+	}
+
+	// --- lookups ---
+
+	// Return the leaf where the entries >= (key, val) begin, pinned.  The
+	// first such entry may be further along, in a following leaf.
+	private long leafFor(int key, long val) {
+		long page = root;
+		ByteBuffer b = pool.pin(page).buffer;
+		while (!isLeaf(b)) {
+			long c = child(b, search(b, key, val, false));
+			pool.unpin(page, false);
+			page = c;
+			b = pool.pin(page).buffer;
+		}
+		return page;
+	}
+
+	@Override
+	public List<Long> lookup(int key) {
+		List<Long> result = new ArrayList<Long>();
+		long page = leafFor(key, Long.MIN_VALUE);
+		ByteBuffer b = pool.getPinned(page).buffer;
+		int i = search(b, key, Long.MIN_VALUE, false);
+		while (true) {
+			for ( ; i < count(b); i++) {
+				if (leafKey(b, i) != key) {
+					pool.unpin(page, false);
+					return result;
+				}
+				// copies of an entry are next to each other
+				long val = leafVal(b, i);
+				if (result.isEmpty() || result.get(result.size() - 1) != val) {
+					result.add(val);
+				}
+			}
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			if (next < 0) {
+				return result;
+			}
+			page = next;
+			b = pool.pin(page).buffer;
+			i = 0;
+		}
+	}
+
+	@Override
+	public int lookup(int key, long[] dest) {
+		int count = 0;
+		long last = 0;
+		long page = leafFor(key, Long.MIN_VALUE);
+		ByteBuffer b = pool.getPinned(page).buffer;
+		int i = search(b, key, Long.MIN_VALUE, false);
+		while (true) {
+			for ( ; i < count(b); i++) {
+				if (leafKey(b, i) != key) {
+					pool.unpin(page, false);
+					return count;
+				}
+				long val = leafVal(b, i);
+				if (count == 0 || val != last) {
+					last = val;
+					if (count < dest.length) {
+						dest[count] = val;
+					}
+					count++;
+				}
+			}
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			if (next < 0) {
+				return count;
+			}
+			page = next;
+			b = pool.pin(page).buffer;
+			i = 0;
+		}
+	}
+
+	// The iterator copies the entries of one leaf at a time, so that it
+	// doesn't keep a page pinned between calls.
+	@Override
+	public Iterator<Long> rangeIterator(int lo, int hi) {
+		return new Iterator<Long>() {
+			int[] keys = new int[leafCapacity];
+			long[] vals = new long[leafCapacity];
+			int n, pos;
+			long next;
+
+			{
+				long page = leafFor(lo, Long.MIN_VALUE);
+				ByteBuffer b = pool.getPinned(page).buffer;
+				load(b);
+				pos = search(b, lo, Long.MIN_VALUE, false);
+				pool.unpin(page, false);
+			}
+
+			// copy the entries of a pinned leaf
+			private void load(ByteBuffer b) {
+				n = count(b);
+				for (int i = 0; i < n; i++) {
+					keys[i] = leafKey(b, i);
+					vals[i] = leafVal(b, i);
+				}
+				next = b.getLong(nextPosition);
+				pos = 0;
+			}
+
+			@Override
+			public boolean hasNext() {
+				while (pos == n && next >= 0) {
+					long page = next;
+					load(pool.pin(page).buffer);
+					pool.unpin(page, false);
+				}
+				return pos < n && keys[pos] <= hi;
+			}
+
+			@Override
+			public Long next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return vals[pos++];
+			}
+		};
+	}
+
+	// --- inserts ---
+
+	@Override
+	public void insert(int key, long blockNum) {
+		if (insert(root, key, blockNum)) {
+			// the root was split, so the tree grows a level
+			long newRoot = allocatePage(innerPage);
+			ByteBuffer b = pool.getPinned(newRoot).buffer;
+			b.putLong(child0Position, root);
+			insertEntry(b, 0, splitKey, splitVal, splitPage);
+			pool.unpin(newRoot, true);
+			root = newRoot;
+		}
+		size++;
+	}
+
+	// Add (key, val) under the given page.  If the page has to be split,
+	// return true, leaving the entry and the new page to add to the
+	// parent in splitKey, splitVal and splitPage.
+	private boolean insert(long page, int key, long val) {
+		ByteBuffer b = pool.pin(page).buffer;
+		int i = search(b, key, val, true);
+		if (isLeaf(b)) {
+			if (count(b) < leafCapacity) {
+				insertEntry(b, i, key, val, 0);
+				pool.unpin(page, true);
+				return false;
+			}
+			splitLeaf(page, b, i, key, val);
+			return true;
+		}
+
+		boolean split = insert(child(b, i), key, val);
+		if (!split) {
+			pool.unpin(page, false);
+			return false;
+		}
+		if (count(b) < innerCapacity) {
+			insertEntry(b, i, splitKey, splitVal, splitPage);
+			pool.unpin(page, true);
+			return false;
+		}
+		splitInner(page, b, i, splitKey, splitVal, splitPage);
+		return true;
+	}
+
+	// split a full, pinned leaf, add (key, val) at position i, and unpin it
+	private void splitLeaf(long page, ByteBuffer b, int i, int key, long val) {
+		int n = count(b);
+		boolean appended = (i == n && b.getLong(nextPosition) < 0);
+		int mid = appended ? n : n / 2;
+		long right = allocatePage(leafPage);
+		ByteBuffer rb = pool.getPinned(right).buffer;
+		moveEntries(b, mid, rb);
+		rb.putLong(nextPosition, b.getLong(nextPosition));
+		b.putLong(nextPosition, right);
+		if (i < mid) {
+			insertEntry(b, i, key, val, 0);
+		} else {
+			insertEntry(rb, i - mid, key, val, 0);
+		}
+		splitKey = leafKey(rb, 0);
+		splitVal = leafVal(rb, 0);
+		splitPage = right;
+		pool.unpin(right, true);
+		pool.unpin(page, true);
+	}
+
+	// Split a full, pinned inner node, add the entry (key, val, child) at
+	// position i, and unpin it.  The middle entry goes up to the parent.
+	private void splitInner(long page, ByteBuffer b, int i, int key, long val, long child) {
+		int mid = count(b) / 2;
+		long right = allocatePage(innerPage);
+		ByteBuffer rb = pool.getPinned(right).buffer;
+		int upKey = innerKey(b, mid);
+		long upVal = innerVal(b, mid);
+		rb.putLong(child0Position, child(b, mid + 1));
+		moveEntries(b, mid + 1, rb);
+		b.putInt(countPosition, mid);
+		if (i <= mid) {
+			insertEntry(b, i, key, val, child);
+		} else {
+			insertEntry(rb, i - mid - 1, key, val, child);
+		}
+		splitKey = upKey;
+		splitVal = upVal;
+		splitPage = right;
+		pool.unpin(right, true);
+		pool.unpin(page, true);
+	}
+
+	// Insert many key/block pairs.  Into an empty index, the pairs are
+	// sorted and the tree is built bottom up, a level at a time, with
+	// full pages.  Otherwise the sorted pairs are inserted in order.
+	@Override
+	public void insertAll(int[] keys, long[] blockNums, int n) {
+		long[] order = OrdIndex.sortedByKey(keys, n);
+		int[] sortedKeys = new int[n];
+		long[] vals = new long[n];
+		for (int j = 0; j < n; j++) {
+			sortedKeys[j] = OrdIndex.sortKey(order[j]);
+			vals[j] = blockNums[OrdIndex.sortPosition(order[j])];
+		}
+		for (int j = 0; j < n; ) {
+			int start = j;
+			while (j < n && sortedKeys[j] == sortedKeys[start]) {
+				j++;
+			}
+			Arrays.sort(vals, start, j);
+		}
+
+		if (size > 0) {
+			for (int j = 0; j < n; j++) {
+				insert(sortedKeys[j], vals[j]);
+			}
+			return;
+		}
+		if (n > 0) {
+			build(sortedKeys, vals, n);
+		}
+	}
+
+	// build the tree from n sorted entries, replacing the empty tree
+	private void build(int[] keys, long[] vals, int n) {
+		clear();
+
+		// the leaves; pages[j] is the jth page of the level below the one
+		// being built, and (firstKeys[j], firstVals[j]) its first entry
+		int numLeaves = (n + leafCapacity - 1) / leafCapacity;
+		long[] pages = new long[numLeaves];
+		int[] firstKeys = new int[numLeaves];
+		long[] firstVals = new long[numLeaves];
+		long page = root;
+		ByteBuffer b = pool.pin(page).buffer;
+		for (int j = 0; j < numLeaves; j++) {
+			int start = j * leafCapacity;
+			int end = Math.min(n, start + leafCapacity);
+			for (int k = start; k < end; k++) {
+				putEntry(b, k - start, keys[k], vals[k], 0);
+			}
+			b.putInt(countPosition, end - start);
+			pages[j] = page;
+			firstKeys[j] = keys[start];
+			firstVals[j] = vals[start];
+			if (j + 1 < numLeaves) {
+				long next = allocatePage(leafPage);
+				b.putLong(nextPosition, next);
+				pool.unpin(page, true);
+				page = next;
+				b = pool.getPinned(page).buffer;
+			}
+		}
+		pool.unpin(page, true);
+
+		// inner levels, until one page is left
+		int numNodes = numLeaves;
+		while (numNodes > 1) {
+			int fanout = innerCapacity + 1;
+			int numParents = (numNodes + fanout - 1) / fanout;
+			for (int p = 0; p < numParents; p++) {
+				int start = p * fanout;
+				int end = Math.min(numNodes, start + fanout);
+				long parent = allocatePage(innerPage);
+				ByteBuffer pb = pool.getPinned(parent).buffer;
+				pb.putLong(child0Position, pages[start]);
+				for (int j = start + 1; j < end; j++) {
+					putEntry(pb, j - start - 1, firstKeys[j], firstVals[j], pages[j]);
+				}
+				pb.putInt(countPosition, end - start - 1);
+				pool.unpin(parent, true);
+				pages[p] = parent;
+				firstKeys[p] = firstKeys[start];
+				firstVals[p] = firstVals[start];
+			}
+			numNodes = numParents;
+		}
+		root = pages[0];
+		size = n;
+	}
+
+	// --- deletes ---
+
+	@Override
+	public void delete(int key, long blockNum) {
+		if (!delete(root, key, blockNum)) {
+			return;
+		}
+		size--;
+		ByteBuffer b = pool.pin(root).buffer;
+		if (!isLeaf(b) && count(b) == 0) {
+			// the root has one child left, so the tree shrinks a level
+			long oldRoot = root;
+			root = child(b, 0);
+			freePage(oldRoot, b);
+		} else {
+			pool.unpin(root, false);
+		}
+	}
+
+	// Delete one copy of (key, val) under the given page, and return true
+	// if there was one.  A child that becomes too small is fixed up.
+	private boolean delete(long page, int key, long val) {
+		ByteBuffer b = pool.pin(page).buffer;
+		if (isLeaf(b)) {
+			int i = search(b, key, val, false);
+			boolean found = (i < count(b) && leafKey(b, i) == key && leafVal(b, i) == val);
+			if (found) {
+				removeEntry(b, i);
+			}
+			pool.unpin(page, found);
+			return found;
+		}
+
+		// copies of the entry may be under any child from first to last
+		int first = search(b, key, val, false);
+		int last = search(b, key, val, true);
+		for (int i = first; i <= last; i++) {
+			long c = child(b, i);
+			if (delete(c, key, val)) {
+				boolean changed = fixChild(b, i);
+				pool.unpin(page, changed);
+				return true;
+			}
+		}
+		pool.unpin(page, false);
+		return false;
+	}
+
+	// If child i of the pinned inner node b has become too small, merge it
+	// with a sibling, or move entries to it from the sibling.  Return true
+	// if b was changed.
+	private boolean fixChild(ByteBuffer b, int i) {
+		long c = child(b, i);
+		ByteBuffer cb = pool.pin(c).buffer;
+		int capacity = isLeaf(cb) ? leafCapacity : innerCapacity;
+		boolean small = count(cb) < capacity / 4;
+		pool.unpin(c, false);
+		if (!small) {
+			return false;
+		}
+
+		// s is the entry between the left and right nodes
+		int s = (i < count(b)) ? i : i - 1;
+		long left = child(b, s);
+		long right = child(b, s + 1);
+		ByteBuffer lb = pool.pin(left).buffer;
+		ByteBuffer rb = pool.pin(right).buffer;
+		if (isLeaf(lb)) {
+			if (count(lb) + count(rb) <= leafCapacity) {
+				moveEntries(rb, 0, lb);
+				lb.putLong(nextPosition, rb.getLong(nextPosition));
+				pool.unpin(left, true);
+				freePage(right, rb);
+				removeEntry(b, s);
+				return true;
+			}
+			balance(lb, rb);
+			putEntry(b, s, leafKey(rb, 0), leafVal(rb, 0), right);
+		} else {
+			if (count(lb) + count(rb) + 1 <= innerCapacity) {
+				// pull the separator down, then append the right node
+				insertEntry(lb, count(lb), innerKey(b, s), innerVal(b, s), child(rb, 0));
+				moveEntries(rb, 0, lb);
+				pool.unpin(left, true);
+				freePage(right, rb);
+				removeEntry(b, s);
+				return true;
+			}
+			balanceInner(b, s, lb, rb);
+		}
+		pool.unpin(left, true);
+		pool.unpin(right, true);
+		return true;
+	}
+
+	// move entries between two sibling leaves so that they hold about the
+	// same number
+	private static void balance(ByteBuffer lb, ByteBuffer rb) {
+		int total = count(lb) + count(rb);
+		int leftCount = total / 2;
+		int size = leafEntrySize;
+		int pos = leafEntriesPosition;
+		if (count(lb) > leftCount) {
+			// shift the right leaf's entries up, and move the excess in
+			int k = count(lb) - leftCount;
+			System.arraycopy(rb.array(), pos, rb.array(), pos + k * size, count(rb) * size);
+			System.arraycopy(lb.array(), pos + leftCount * size, rb.array(), pos, k * size);
+			rb.putInt(countPosition, count(rb) + k);
+			lb.putInt(countPosition, leftCount);
+		} else {
+			// move the first entries of the right leaf over
+			int k = leftCount - count(lb);
+			System.arraycopy(rb.array(), pos, lb.array(), pos + count(lb) * size, k * size);
+			System.arraycopy(rb.array(), pos + k * size, rb.array(), pos, (count(rb) - k) * size);
+			lb.putInt(countPosition, leftCount);
+			rb.putInt(countPosition, count(rb) - k);
+		}
+	}
+
+	// Move entries between two sibling inner nodes, through entry s of
+	// their parent pb, so that they hold about the same number.  Taken in
+	// order, the entries of the left node, the parent entry (with child 0
+	// of the right node as its child) and the entries of the right node
+	// are split in the same place, and the entry there goes to the parent.
+	private static void balanceInner(ByteBuffer pb, int s, ByteBuffer lb, ByteBuffer rb) {
+		int nl = count(lb);
+		int nr = count(rb);
+		int leftCount = (nl + nr) / 2;
+		int size = innerEntrySize;
+		int pos = innerEntriesPosition;
+		int sepKey = innerKey(pb, s);
+		long sepVal = innerVal(pb, s);
+		long rightChild0 = child(rb, 0);
+		long right = child(pb, s + 1);
+		if (nl > leftCount) {
+			// left entry leftCount goes up; the ones after it, then the
+			// old parent entry, go to the front of the right node
+			int k = nl - leftCount;
+			System.arraycopy(rb.array(), pos, rb.array(), pos + k * size, nr * size);
+			System.arraycopy(lb.array(), pos + (leftCount + 1) * size, rb.array(), pos, (k - 1) * size);
+			rb.putInt(countPosition, nr + k);
+			putEntry(rb, k - 1, sepKey, sepVal, rightChild0);
+			rb.putLong(child0Position, child(lb, leftCount + 1));
+			putEntry(pb, s, innerKey(lb, leftCount), innerVal(lb, leftCount), right);
+			lb.putInt(countPosition, leftCount);
+		} else if (nl < leftCount) {
+			// the old parent entry, then the first right entries, go to
+			// the end of the left node; right entry k-1 goes up
+			int k = leftCount - nl;
+			lb.putInt(countPosition, nl + 1);
+			putEntry(lb, nl, sepKey, sepVal, rightChild0);
+			System.arraycopy(rb.array(), pos, lb.array(), pos + (nl + 1) * size, (k - 1) * size);
+			lb.putInt(countPosition, leftCount);
+			putEntry(pb, s, innerKey(rb, k - 1), innerVal(rb, k - 1), right);
+			rb.putLong(child0Position, child(rb, k));
+			System.arraycopy(rb.array(), pos + k * size, rb.array(), pos, (nr - k) * size);
+			rb.putInt(countPosition, nr - k);
+		}
+	}
+}
@@ -67,6 +67,15 @@ public class Bitmap {
 		bytes[ib] = setBit(bytes[ib], i - ib*Byte.SIZE, bit);
 	}
 	
+	// return the number of bits that are 1
+	public int countOnes() {
+		int cnt = 0;
+		for (int i = 0; i < numBytes; i++) {
+			cnt += Integer.bitCount(bytes[i] & 0xFF);
+		}
+		return cnt;
+	}
+	
 	// return the index of the first bit that is 0
 	// return -1 if no such bit
 	public int firstZero() {
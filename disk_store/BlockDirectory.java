@@ -0,0 +1,360 @@
+package disk_store;
+
+/**
+ * A two-level directory of the data blocks of a heap file.  It records
+ * which blocks have been allocated, how many free record slots each
+ * block has, and which blocks hold no records at all.
+ *
+ * The file is divided into extents.  Each extent is a directory page
+ * followed by blocksPerExtent data blocks, and the directory page holds
+ * one byte per data block of the extent.  A root page holds a two-byte
+ * summary of each extent.  With 4 KB blocks, the root can describe 2044
+ * extents, which is about 32 GB of data blocks.
+ *
+ * Data blocks are allocated in order and are never freed, so the
+ * allocated blocks are always the first numBlocks data blocks.  Block
+ * numbers are longs, like those of BlockedFile.
+ *
+ * The root page stays pinned in the buffer pool; directory pages are
+ * pinned as needed.
+ *
+ */
+
+/* Implementation notes:
+ *  - Directory byte for a data block: 0xFF if the block has no records,
+ *    otherwise min(free slots, 254).  A block without records is an
+ *    acceptable target for any insert, so 0xFF also compares highest.
+ *  - Root page layout: int numBlocks, int numExtents, then for extent e,
+ *    the max and the min of the directory bytes of the allocated blocks
+ *    of e.  An extent whose min is 0xFF holds no records at all, and
+ *    scans skip it without reading its directory page.
+ *  - An in-memory max-tree over the extent max bytes (node i has
+ *    children 2i and 2i+1) finds an extent with room in O(log n).  A
+ *    directory page is then scanned to find the block.  The tree is
+ *    rebuilt from the root page when a database is opened.
+ */
+
+public class BlockDirectory {
+
+	private static final int empty = 0xFF;       // directory byte for a block with no records
+	private static final int maxCount = 254;     // largest free count that is stored
+
+	// root page layout
+	private static final int numBlocksPosition = 0;
+	private static final int numExtentsPosition = numBlocksPosition + Integer.BYTES;
+	private static final int extentsPosition = numExtentsPosition + Integer.BYTES;
+
+	private BufferPool pool;
+	private int rootBlock;
+	private int blockSize;
+	private int blocksPerExtent;     // data blocks per extent
+	private int maxExtents;          // number of extents the root can describe
+
+	private BlockBuffer root;        // the pinned root page
+	private byte[] tree;             // summary tree over extent max bytes
+	private int numLeaves;
+
+	/**
+	 * Create a directory whose root page is the given block.  Extents
+	 * start at the block after the root.
+	 * @param pool
+	 * @param rootBlock
+	 * @param blockSize
+	 */
+	public BlockDirectory(BufferPool pool, int rootBlock, int blockSize) {
+		this.pool = pool;
+		this.rootBlock = rootBlock;
+		this.blockSize = blockSize;
+		blocksPerExtent = blockSize;
+		maxExtents = (blockSize - extentsPosition) / 2;
+		numLeaves = 1;
+		while (numLeaves < maxExtents) {
+			numLeaves *= 2;
+		}
+		tree = new byte[2*numLeaves];
+	}
+
+	/**
+	 * Initialize the root page of a new database.
+	 */
+	public void create() {
+		root = pool.pinNew(rootBlock);
+		root.putInt(numBlocksPosition, 0);
+		root.putInt(numExtentsPosition, 0);
+	}
+
+	/**
+	 * Read the root page of an existing database and build the summary.
+	 */
+	public void load() {
+		root = pool.pin(rootBlock);
+		for (int e = 0; e < numExtents(); e++) {
+			tree[numLeaves + e] = root.get(extentsPosition + 2*e);
+		}
+		for (int i = numLeaves - 1; i >= 1; i--) {
+			tree[i] = max(tree[2*i], tree[2*i+1]);
+		}
+	}
+
+	/**
+	 * Unpin the root page.  The directory must not be used afterwards.
+	 */
+	public void close() {
+		pool.unpin(rootBlock, false);
+	}
+
+	/**
+	 * Return the number of allocated data blocks.
+	 */
+	public int numBlocks() {
+		return root.getInt(numBlocksPosition);
+	}
+
+	// return the number of extents that have been started
+	private int numExtents() {
+		return root.getInt(numExtentsPosition);
+	}
+
+	/**
+	 * Return true if the given block is an allocated data block.
+	 * @param blockNum
+	 * @return
+	 */
+	public boolean isValid(long blockNum) {
+		int i = dataIndex(blockNum);
+		return i >= 0 && i < numBlocks();
+	}
+
+	/**
+	 * Allocate a new data block and return its block number.  The new
+	 * block is recorded as having no records.  The caller must
+	 * initialize the block itself.
+	 * @return
+	 */
+	public long allocate() {
+		int i = numBlocks();
+		int e = i / blocksPerExtent;
+		if (i % blocksPerExtent == 0) {
+			// start a new extent
+			if (e >= maxExtents) {
+				throw new IllegalStateException("Error: database is full");
+			}
+			pool.pinNew(directoryPage(e));
+			pool.unpin(directoryPage(e), true);
+			root.putInt(numExtentsPosition, e + 1);
+		}
+		root.putInt(numBlocksPosition, i + 1);
+		pool.markDirty(rootBlock);
+
+		long blockNum = blockNumber(i);
+		BlockBuffer dir = pool.pin(directoryPage(e));
+		dir.put(i % blocksPerExtent, (byte)empty);
+		pool.unpin(directoryPage(e), true);
+		if (i % blocksPerExtent == 0) {
+			setSummary(e, (byte)empty, (byte)empty);
+		} else {
+			setSummary(e, (byte)empty, extentMin(e));
+		}
+		return blockNum;
+	}
+
+	/**
+	 * Record the number of records and free slots in the given block.
+	 * @param blockNum
+	 * @param numRecords
+	 * @param freeSlots
+	 */
+	public void set(long blockNum, int numRecords, int freeSlots) {
+		if (!isValid(blockNum)) {
+			throw new IllegalArgumentException("block "+blockNum+" is not an allocated data block");
+		}
+		byte value = (byte)((numRecords == 0) ? empty : Math.min(freeSlots, maxCount));
+		int i = dataIndex(blockNum);
+		int e = i / blocksPerExtent;
+		long page = directoryPage(e);
+		BlockBuffer dir = pool.pin(page);
+		byte old = dir.get(i % blocksPerExtent);
+		if (old == value) {
+			pool.unpin(page, false);
+			return;
+		}
+		dir.put(i % blocksPerExtent, value);
+
+		// update the extent summary; a full scan of the directory page is
+		// needed only if the old value was the extent's max or min
+		byte emax = extentMax(e);
+		byte emin = extentMin(e);
+		if ((value & 0xFF) >= (emax & 0xFF)) {
+			emax = value;
+		} else if (old == emax) {
+			emax = scanExtent(dir, e, true);
+		}
+		if ((value & 0xFF) <= (emin & 0xFF)) {
+			emin = value;
+		} else if (old == emin) {
+			emin = scanExtent(dir, e, false);
+		}
+		pool.unpin(page, true);
+		setSummary(e, emax, emin);
+	}
+
+	/**
+	 * Return the lowest-numbered allocated block with at least minFree
+	 * free slots (or with no records), or -1 if there is none.
+	 * @param minFree
+	 * @return
+	 */
+	public long findBlock(int minFree) {
+		if ((tree[1] & 0xFF) < minFree) {
+			return -1;
+		}
+		int t = 1;
+		while (t < numLeaves) {
+			t = ((tree[2*t] & 0xFF) >= minFree) ? 2*t : 2*t+1;
+		}
+		int e = t - numLeaves;
+
+		long page = directoryPage(e);
+		BlockBuffer dir = pool.pin(page);
+		int n = blocksInExtent(e);
+		for (int j = 0; j < n; j++) {
+			if ((dir.get(j) & 0xFF) >= minFree) {
+				pool.unpin(page, false);
+				return blockNumber(e*blocksPerExtent + j);
+			}
+		}
+		pool.unpin(page, false);
+		throw new IllegalStateException("Error: directory summary for extent "+e+" is out of date");
+	}
+
+	/**
+	 * Return the lowest-numbered allocated block that is >= blockNum and
+	 * holds at least one record, or -1 if there is none.  Extents
+	 * without records are skipped without reading their directory pages.
+	 * @param blockNum
+	 * @return
+	 */
+	public long nextNonEmpty(long blockNum) {
+		int i = Math.max(0, dataIndexAtOrAfter(blockNum));
+		int n = numBlocks();
+		while (i < n) {
+			int e = i / blocksPerExtent;
+			if ((extentMin(e) & 0xFF) == empty) {
+				// no records anywhere in the extent
+				i = (e + 1) * blocksPerExtent;
+				continue;
+			}
+			long page = directoryPage(e);
+			BlockBuffer dir = pool.pin(page);
+			int end = e*blocksPerExtent + blocksInExtent(e);
+			for (; i < end; i++) {
+				if ((dir.get(i % blocksPerExtent) & 0xFF) != empty) {
+					pool.unpin(page, false);
+					return blockNumber(i);
+				}
+			}
+			pool.unpin(page, false);
+		}
+		return -1;
+	}
+
+	// return the block number of the directory page of extent e
+	private long directoryPage(int e) {
+		return rootBlock + 1 + (long)e*(blocksPerExtent + 1);
+	}
+
+	/**
+	 * Return the block number of the ith allocated data block, for
+	 * 0 <= i < numBlocks().
+	 * @param i
+	 * @return
+	 */
+	public long blockNumber(int i) {
+		int e = i / blocksPerExtent;
+		return directoryPage(e) + 1 + i % blocksPerExtent;
+	}
+
+	/**
+	 * Return i such that the given block is the ith data block (the
+	 * inverse of blockNumber()), or -1 if it is not a data block.  The
+	 * block need not be allocated yet.
+	 * @param blockNum
+	 * @return
+	 */
+	public int indexOf(long blockNum) {
+		return dataIndex(blockNum);
+	}
+
+	// return i such that blockNum is the ith data block, or -1 if
+	// blockNum is not a data block
+	private int dataIndex(long blockNum) {
+		long offset = blockNum - rootBlock - 1;
+		if (offset < 0 || offset % (blocksPerExtent + 1) == 0 || offset / (blocksPerExtent + 1) >= maxExtents) {
+			return -1;
+		}
+		return (int)((offset / (blocksPerExtent + 1)) * blocksPerExtent + offset % (blocksPerExtent + 1) - 1);
+	}
+
+	// return the index of the first data block whose block number is >= blockNum
+	private int dataIndexAtOrAfter(long blockNum) {
+		long offset = blockNum - rootBlock - 1;
+		if (offset < 0) {
+			return 0;
+		}
+		if (offset / (blocksPerExtent + 1) >= maxExtents) {
+			return maxExtents * blocksPerExtent;
+		}
+		int e = (int)(offset / (blocksPerExtent + 1));
+		int j = (int)(offset % (blocksPerExtent + 1));
+		// j == 0 is the directory page, which is followed by data block 0 of the extent
+		return e*blocksPerExtent + Math.max(j - 1, 0);
+	}
+
+	// return the number of allocated data blocks in extent e
+	private int blocksInExtent(int e) {
+		return Math.min(blocksPerExtent, numBlocks() - e*blocksPerExtent);
+	}
+
+	private byte extentMax(int e) {
+		return root.get(extentsPosition + 2*e);
+	}
+
+	private byte extentMin(int e) {
+		return root.get(extentsPosition + 2*e + 1);
+	}
+
+	// record the summary of extent e in the root page and the tree
+	private void setSummary(int e, byte emax, byte emin) {
+		root.put(extentsPosition + 2*e, emax);
+		root.put(extentsPosition + 2*e + 1, emin);
+		pool.markDirty(rootBlock);
+
+		int t = numLeaves + e;
+		tree[t] = emax;
+		for (t = t/2; t >= 1; t = t/2) {
+			tree[t] = max(tree[2*t], tree[2*t+1]);
+		}
+	}
+
+	// return the max (if findMax) or min of the directory bytes of the
+	// allocated blocks of extent e
+	private byte scanExtent(BlockBuffer dir, int e, boolean findMax) {
+		int n = blocksInExtent(e);
+		int result = dir.get(0) & 0xFF;
+		for (int j = 1; j < n; j++) {
+			int v = dir.get(j) & 0xFF;
+			result = findMax ? Math.max(result, v) : Math.min(result, v);
+		}
+		return (byte)result;
+	}
+
+	// return the larger of two unsigned bytes
+	private static byte max(byte a, byte b) {
+		return ((a & 0xFF) >= (b & 0xFF)) ? a : b;
+	}
+
+	@Override
+	public String toString() {
+		return numBlocks()+" data blocks in "+numExtents()+" extents\n";
+	}
+}
@@ -2,10 +2,12 @@ package disk_store;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
@@ -28,26 +30,49 @@ import java.util.ListIterator;
  * int a = bf.get();
  * int b = bf.get();
  * 
+ * A blocked file can optionally be opened in memory-mapped mode.  In
+ * that mode the file is mapped in fixed-size chunks, and block reads
+ * and writes are copies to and from the mapping instead of system calls.
+ * 
  * @author Glenn
  *
  */
 
 /* Implementation notes:
- *  - Efficiency may be improved by taking advantage of the memory
- *    mapping supported by FileChannel.
- *  - Note that class BlockBuffer is no longer used here.
+ *  - Reads and writes use positional FileChannel I/O and never change
+ *    the channel position, so many threads can read blocks at once,
+ *    each into its own BlockBuffer.
+ *  - Block indexes are longs, so byte offsets (index * blockSize) are
+ *    computed in long arithmetic and files larger than 2 GB work.
+ *  - In mapped mode, chunk c maps blocks c*blocksPerChunk through
+ *    (c+1)*blocksPerChunk - 1.  Chunks are mapped lazily, the first time
+ *    a block in the chunk is accessed, so the mapping grows along with
+ *    lastBlockIndex.
+ *  - Mapping a chunk extends the file to the end of the chunk.  close()
+ *    tries to truncate the file back to lastBlockIndex+1 blocks, but a
+ *    file can't be truncated while it is mapped on every platform (and
+ *    a crash skips close()), so open() trims any padding that is left: a
+ *    file whose size is a whole number of chunks loses the zero blocks at
+ *    the end of its last chunk.  A block past the end of the file reads
+ *    as zeros anyway, so this loses nothing.
  */
 
 public class BlockedFile {
 	
 	private FileChannel fc;
-	private long lastBlockIndex;
+	private volatile long lastBlockIndex;
 	static final int blockSize = 1024*4;
 	
+	// memory-mapped mode
+	private boolean mapped;
+	private MappedByteBuffer[] chunks;            // chunks[c] is null until chunk c is mapped
+	private static final int blocksPerChunk = 1024;  // 4 MB per mapped chunk
+	
 	// private constructor
-	private BlockedFile(FileChannel fc, long lastBlockIndex) {
+	private BlockedFile(FileChannel fc, long lastBlockIndex, boolean mapped) {
 		this.fc = fc;
 		this.lastBlockIndex = lastBlockIndex;
+		setMapped(mapped);
 	}
 	
 	/** 
@@ -55,7 +80,17 @@ public class BlockedFile {
 	 * @param filename
 	 */
 	public BlockedFile(String filename) {
+		this(filename, false);
+	}
+	
+	/** 
+	 * create a new blocked file, optionally in memory-mapped mode
+	 * @param filename
+	 * @param mapped true if block reads and writes should go through a memory mapping
+	 */
+	public BlockedFile(String filename, boolean mapped) {
 		this.lastBlockIndex = 0;
+		setMapped(mapped);
 		Path file = Paths.get(filename);
 		try {
 			// create a file channel
@@ -70,6 +105,16 @@ public class BlockedFile {
 	 * @param filename
 	 */
 	public static BlockedFile open(String filename) {
+		return open(filename, false);
+	}
+	
+	/**
+	 * open an existing blocked file for reading and writing, optionally
+	 * in memory-mapped mode
+	 * @param filename
+	 * @param mapped true if block reads and writes should go through a memory mapping
+	 */
+	public static BlockedFile open(String filename, boolean mapped) {
 		FileChannel fc = null;
 		long sz = 0;
 		Path file = Paths.get(filename);
@@ -83,19 +128,110 @@ public class BlockedFile {
 		if (sz % blockSize != 0) {
 			throw new IllegalStateException("not a blocked file: file does not have an integral number of blocks");
 		}
+		sz = trimPadding(fc, sz);
 		
-		BlockedFile bf = new BlockedFile(fc, sz % blockSize);
+		BlockedFile bf = new BlockedFile(fc, sz / blockSize - 1, mapped);
 		return bf;
 	}
 	
+	// Drop the zero blocks at the end of a file of sz bytes that may be
+	// padding from a mapped chunk, and return the new size.  The first
+	// block of a chunk is only mapped if it is in the file, so it is kept.
+	private static long trimPadding(FileChannel fc, long sz) {
+		long chunkBytes = (long)blocksPerChunk * blockSize;
+		if (sz == 0 || sz % chunkBytes != 0) {
+			return sz;
+		}
+		long first = sz - chunkBytes + blockSize;    // first block that may be padding
+		long end = sz;
+		ByteBuffer buf = ByteBuffer.allocate(blockSize);
+		try {
+			while (end > first) {
+				buf.clear();
+				while (buf.hasRemaining() && fc.read(buf, end - blockSize + buf.position()) >= 0)
+					;
+				if (!isZero(buf.array())) {
+					break;
+				}
+				end -= blockSize;
+			}
+			if (end < sz) {
+				fc.truncate(end);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't trim padding from file");
+		}
+		return end;
+	}
+	
+	private static boolean isZero(byte[] bytes) {
+		for (byte b : bytes) {
+			if (b != 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+	
+	// set the access mode; this must be done before any block is accessed
+	private void setMapped(boolean mapped) {
+		this.mapped = mapped;
+		this.chunks = new MappedByteBuffer[0];
+	}
+	
 	/**
-	 * close a blocked file
+	 * return true if this file is in memory-mapped mode
 	 */
-	public void close() {
+	public boolean isMapped() {
+		return mapped;
+	}
+	
+	/**
+	 * force all blocks written so far to the storage device
+	 */
+	public synchronized void force() {
 		try {
-			fc.close();
+			if (mapped) {
+				for (MappedByteBuffer chunk : chunks) {
+					if (chunk != null) {
+						chunk.force();
+					}
+				}
+			}
+			fc.force(true);
 		} catch (IOException e) {
 			e.printStackTrace();
+			throw new IllegalStateException("Error: can't force file to disk");
+		}
+	}
+	
+	/**
+	 * close a blocked file
+	 */
+	public synchronized void close() {
+		try {
+			if (mapped) {
+				// write mapped changes back, and drop the padding that was
+				// added to the file when the last chunk was mapped
+				for (MappedByteBuffer chunk : chunks) {
+					if (chunk != null) {
+						chunk.force();
+					}
+				}
+				chunks = new MappedByteBuffer[0];
+				try {
+					fc.truncate((lastBlockIndex + 1) * blockSize);
+				} catch (IOException e) {
+					// the chunks may still be mapped; open() trims the padding
+				}
+			}
+		} finally {
+			try {
+				fc.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
 	}
 	
@@ -111,43 +247,159 @@ public class BlockedFile {
 	 * @param b a BlockBuffer
 	 * @return
 	 */
-	public int read(int index, BlockBuffer buf) {
+	public int read(long index, BlockBuffer buf) {
+		if (mapped) {
+			return readMapped(index, buf);
+		}
 		buf.reset();
 		int numBytesRead = 0;
 		try {
-			fc.position(index * blockSize);
-			numBytesRead = fc.read(buf.buffer);
+			long position = index * blockSize;
+			while (buf.buffer.hasRemaining()) {
+				int n = fc.read(buf.buffer, position + numBytesRead);
+				if (n < 0) {
+					// end of file
+					if (numBytesRead == 0) {
+						numBytesRead = -1;
+					}
+					break;
+				}
+				numBytesRead += n;
+			}
 		} catch (IOException e) {
-			// TODO Auto-generated catch block
 			e.printStackTrace();
-		} 		
+			throw new IllegalStateException("Error: can't read block from file");
+		}
 		// reading changes the buffer's position value
 		buf.reset();
 		return numBytesRead;
 	}
 
+	/**
+	 * read n consecutive blocks, starting at the given block index, into
+	 * bufs[0..n-1] with a single multi-block read.  Any part of a
+	 * buffer past the end of the file is zero-filled.
+	 * @param index index of the first block
+	 * @param bufs BlockBuffers, one per block
+	 * @param n number of blocks
+	 * @return number of bytes read, or -1 if index is past the end of the file
+	 */
+	public int readBlocks(long index, BlockBuffer[] bufs, int n) {
+		int numBytesRead = 0;
+		if (mapped) {
+			for (int i = 0; i < n; i++) {
+				int r = readMapped(index + i, bufs[i]);
+				if (r < 0) {
+					Arrays.fill(bufs[i].buffer.array(), (byte)0);
+				} else {
+					numBytesRead += r;
+				}
+			}
+			return (numBytesRead == 0) ? -1 : numBytesRead;
+		}
+		ByteBuffer big = ByteBuffer.allocate(n * blockSize);
+		try {
+			long position = index * blockSize;
+			while (big.hasRemaining()) {
+				int r = fc.read(big, position + numBytesRead);
+				if (r < 0) {
+					break;
+				}
+				numBytesRead += r;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't read blocks from file");
+		}
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(big.array(), i * blockSize, bufs[i].buffer.array(), 0, blockSize);
+			bufs[i].reset();
+		}
+		return (numBytesRead == 0) ? -1 : numBytesRead;
+	}
+
     /**
      * write the buffer contents to the specified block index
      * @param index block index
      * @param b block
      */
-	public void write(int index, BlockBuffer buf) {
+	public void write(long index, BlockBuffer buf) {
+		if (mapped) {
+			writeMapped(index, buf);
+			return;
+		}
 		buf.reset();
 		try {
-			fc.position(index * blockSize);
-			fc.write(buf.buffer);
+			long position = index * blockSize;
+			while (buf.buffer.hasRemaining()) {
+				fc.write(buf.buffer, position + buf.buffer.position());
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 			throw new IllegalStateException("Error: can't write block to file");
 		}
 		// writing changes the buffer's position value
 		buf.reset();
+		extendTo(index);
+	}
+	
+	// record that the file now extends at least to the given block
+	private synchronized void extendTo(long index) {
 		if (index > lastBlockIndex) {
 			lastBlockIndex = index;
 		}
 	}
+	
+	// read a block by copying it out of the mapping
+	private int readMapped(long index, BlockBuffer buf) {
+		buf.reset();
+		if (index > lastBlockIndex) {
+			// same as reading past the end of the file
+			return -1;
+		}
+		MappedByteBuffer chunk = getChunk(index);
+		chunk.get(chunkOffset(index), buf.buffer.array(), 0, blockSize);
+		return blockSize;
+	}
+	
+	// write a block by copying it into the mapping
+	private void writeMapped(long index, BlockBuffer buf) {
+		buf.reset();
+		MappedByteBuffer chunk = getChunk(index);
+		chunk.put(chunkOffset(index), buf.buffer.array(), 0, blockSize);
+		extendTo(index);
+	}
+	
+	// byte offset of the given block within its chunk
+	private int chunkOffset(long index) {
+		return (int)(index % blocksPerChunk) * blockSize;
+	}
+	
+	// return the mapped chunk containing the given block, mapping it if needed
+	private synchronized MappedByteBuffer getChunk(long index) {
+		int c = (int)(index / blocksPerChunk);
+		if (c >= chunks.length) {
+			MappedByteBuffer[] newChunks = new MappedByteBuffer[Math.max(c + 1, 2 * chunks.length)];
+			System.arraycopy(chunks, 0, newChunks, 0, chunks.length);
+			chunks = newChunks;
+		}
+		if (chunks[c] == null) {
+			long chunkBytes = (long)blocksPerChunk * blockSize;
+			try {
+				chunks[c] = fc.map(FileChannel.MapMode.READ_WRITE, c * chunkBytes, chunkBytes);
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new IllegalStateException("Error: can't map block "+index+" of file");
+			}
+		}
+		return chunks[c];
+	}
 
 	public long size() {
+		if (mapped) {
+			// the file itself may be padded out to a chunk boundary
+			return (lastBlockIndex + 1) * blockSize;
+		}
 		try {
 			return fc.size();
 		} catch (IOException e) {
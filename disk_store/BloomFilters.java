@@ -0,0 +1,138 @@
+package disk_store;
+
+import java.util.Arrays;
+
+/**
+ * A Bloom filter for each data block of a heap file, over the values of
+ * one integer field.  If a block's filter does not contain a value, no
+ * record in the block has it, so a lookup of the value can skip the
+ * block.  A filter may contain values that are not in its block, such as
+ * those of deleted records; rebuilding the filters removes them.
+ *
+ * Blocks are numbered from 0 in the order of the block directory (see
+ * BlockDirectory.indexOf).  A block that has no filter yet is taken to
+ * hold no records.
+ *
+ */
+
+/* Implementation notes:
+ *  - Each block gets wordsPerBlock longs of bits, enough for bitsPerRecord
+ *    bits per record of a full block, stored one block after another in
+ *    bits[].
+ *  - A value sets numHashes bits, at positions h1 + j*h2 (mod the number
+ *    of bits) for j = 0..numHashes-1, where h1 and h2 are the halves of
+ *    a 64-bit multiplicative hash of the value (double hashing).
+ *  - File layout: int file type, int version, int bitsPerRecord, int
+ *    wordsPerBlock, int numBlocks, then the words of each block.
+ */
+
+final class BloomFilters {
+
+	private static final int filterFileVersion = 1;
+
+	private final int bitsPerRecord;
+	private final int wordsPerBlock;
+	private final int numHashes;
+	private int numBlocks;           // blocks with filters so far
+	private long[] bits;
+
+	/**
+	 * Create empty filters, for blocks of recsPerBlock records, using
+	 * bitsPerRecord bits per record.  About 10 bits per record give a
+	 * false positive rate of 1%.
+	 * @param recsPerBlock
+	 * @param bitsPerRecord
+	 */
+	BloomFilters(int recsPerBlock, int bitsPerRecord) {
+		this(bitsPerRecord, (recsPerBlock * bitsPerRecord + Long.SIZE - 1) / Long.SIZE, 0);
+	}
+
+	private BloomFilters(int bitsPerRecord, int wordsPerBlock, int numBlocks) {
+		this.bitsPerRecord = bitsPerRecord;
+		this.wordsPerBlock = wordsPerBlock;
+		// the best number of hashes is bitsPerRecord * ln 2
+		numHashes = Math.max(1, Math.min(8, (int)Math.round(bitsPerRecord * Math.log(2))));
+		bits = new long[numBlocks * wordsPerBlock];
+		this.numBlocks = numBlocks;
+	}
+
+	/**
+	 * Return the number of bits per record.
+	 */
+	int bitsPerRecord() {
+		return bitsPerRecord;
+	}
+
+	/**
+	 * Add value to the filter of block i.
+	 */
+	void add(int i, int value) {
+		if (i >= numBlocks) {
+			int capacity = bits.length / wordsPerBlock;
+			if (i >= capacity) {
+				bits = Arrays.copyOf(bits, Math.max(2 * capacity, Math.max(i + 1, 64)) * wordsPerBlock);
+			}
+			numBlocks = i + 1;
+		}
+		long h = value * 0x9E3779B97F4A7C15L;
+		int h1 = (int)(h >>> 32);
+		int h2 = (int)h | 1;
+		int m = wordsPerBlock * Long.SIZE;
+		int base = i * wordsPerBlock;
+		for (int j = 0; j < numHashes; j++) {
+			int bit = Math.floorMod(h1 + j*h2, m);
+			bits[base + bit / Long.SIZE] |= 1L << bit;
+		}
+	}
+
+	/**
+	 * Return false if block i holds no record with the given value.
+	 */
+	boolean mayContain(int i, int value) {
+		if (i < 0 || i >= numBlocks) {
+			return false;
+		}
+		long h = value * 0x9E3779B97F4A7C15L;
+		int h1 = (int)(h >>> 32);
+		int h2 = (int)h | 1;
+		int m = wordsPerBlock * Long.SIZE;
+		int base = i * wordsPerBlock;
+		for (int j = 0; j < numHashes; j++) {
+			int bit = Math.floorMod(h1 + j*h2, m);
+			if ((bits[base + bit / Long.SIZE] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Write the filters to the given file, replacing it, and force the
+	 * file to disk.
+	 */
+	void save(String filename) {
+		SideFile.write(filename, SideFile.bloomFilters, filterFileVersion, "filter", out -> {
+			out.writeInt(bitsPerRecord);
+			out.writeInt(wordsPerBlock);
+			out.writeInt(numBlocks);
+			for (int k = 0; k < numBlocks * wordsPerBlock; k++) {
+				out.writeLong(bits[k]);
+			}
+		});
+	}
+
+	/**
+	 * Read filters from the given file.
+	 */
+	static BloomFilters load(String filename) {
+		return SideFile.read(filename, SideFile.bloomFilters, filterFileVersion, "filter", in -> {
+			int bitsPerRecord = in.readInt();
+			int wordsPerBlock = in.readInt();
+			BloomFilters filters = new BloomFilters(bitsPerRecord, wordsPerBlock, in.readInt());
+			for (int k = 0; k < filters.bits.length; k++) {
+				filters.bits[k] = in.readLong();
+			}
+			return filters;
+		});
+	}
+}
@@ -0,0 +1,664 @@
+package disk_store;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A buffer pool that caches the blocks of a BlockedFile in a fixed
+ * number of block-sized frames.
+ *
+ * A block must be pinned while it is being used, and unpinned when the
+ * caller is done with it.  A pinned block stays in its frame.  When a
+ * block is unpinned the caller says whether it modified the block; dirty
+ * blocks are written back to the file only when their frame is reused,
+ * or when the pool is flushed.
+ *
+ * Typical use:
+ * BlockBuffer buf = pool.pin(blockNum);
+ * int a = buf.getInt(0);
+ * buf.putInt(0, a+1);
+ * pool.unpin(blockNum, true);
+ *
+ * Frames are replaced with the CLOCK algorithm.
+ *
+ * The pool also lends out private block buffers, for callers such as
+ * iterators that keep a copy of a block between calls.  A borrowed
+ * buffer belongs to the borrower until it is returned, so cursors never
+ * overwrite each other's blocks.
+ *
+ * If the pool is given a write-ahead log, a block changed under a log
+ * record is written back only after the log is flushed up to the
+ * record's LSN (see setPageLSN).
+ *
+ * Blocks can be read ahead of use with prefetch(), either directly or
+ * on a background thread with prefetchAsync().  Consecutive blocks are
+ * read with one multi-block read.
+ *
+ */
+
+/* Implementation notes:
+ *  - frameBlock[f] is the block held in frame f, or -1 if frame f is empty.
+ *  - pageTable maps a block number to the frame that holds it.
+ *  - All public methods are synchronized, so a pool can be shared by
+ *    many threads.  The contents of a pinned frame are not protected
+ *    by the pool.
+ *  - A block is read from the file without holding the pool's lock, so
+ *    misses on different blocks proceed in parallel.  While a frame is
+ *    being read, loading[f] is true, and other threads pinning the same
+ *    block wait for the read to finish.  If the read fails, the block
+ *    is taken out of the pool (see failLoad), and the waiting threads
+ *    find frameBlock[f] changed and try the read again.
+ *  - prefetch() loads blocks the same way: the frames are entered in
+ *    the page table and pinned while they are read, then unpinned.
+ *    prefetched[f] is true until the prefetched block is first pinned.
+ *  - A dirty victim is also written back without holding the lock,
+ *    since the write may wait for the log to be forced.  The frame is
+ *    claimed first (see claimVictim): it is pinned and marked loading,
+ *    so that it is not chosen again, and threads pinning its block wait
+ *    as for a read.  Once it is clean, the thread that needed a frame
+ *    starts over, and usually finds a clean victim.
+ */
+
+public class BufferPool {
+
+	private BlockedFile bf;
+	private BlockBuffer[] frames;
+	private long[] frameBlock;         // block held by each frame
+	private int[] pinCount;            // number of pins on each frame
+	private boolean[] dirty;           // true if frame was modified since it was read
+	private boolean[] referenced;      // CLOCK reference bits
+	private boolean[] loading;         // true while a frame is being read from the file
+	private boolean[] prefetched;      // true if frame was read ahead and not yet used
+	private long[] pageLSN;            // LSN of the last logged change to each frame, or 0
+	private Map<Long, Integer> pageTable;
+	private int clockHand;
+	
+	// private buffers returned by borrowers, kept for reuse
+	private static final int maxSpareBuffers = 16;
+	private ArrayDeque<BlockBuffer> spareBuffers = new ArrayDeque<BlockBuffer>();
+	
+	// the log that must be flushed before a changed block is written back
+	private WriteAheadLog log;
+	
+	// background thread for prefetchAsync(), started when first needed
+	private ExecutorService readAheadThread;
+
+	// statistics
+	private long hits;
+	private long misses;
+	private long blockWrites;
+	private long prefetches;
+	private long prefetchHits;
+
+	/**
+	 * Create a buffer pool with the given number of frames for the
+	 * given file.
+	 * @param bf
+	 * @param numFrames
+	 */
+	public BufferPool(BlockedFile bf, int numFrames) {
+		if (numFrames < 1) {
+			throw new IllegalArgumentException("a buffer pool needs at least one frame");
+		}
+		this.bf = bf;
+		frames = new BlockBuffer[numFrames];
+		frameBlock = new long[numFrames];
+		pinCount = new int[numFrames];
+		dirty = new boolean[numFrames];
+		referenced = new boolean[numFrames];
+		loading = new boolean[numFrames];
+		prefetched = new boolean[numFrames];
+		pageLSN = new long[numFrames];
+		for (int f = 0; f < numFrames; f++) {
+			frames[f] = bf.getBuffer();
+			frameBlock[f] = -1;
+		}
+		pageTable = new HashMap<Long, Integer>();
+		clockHand = 0;
+	}
+
+	/**
+	 * Pin the given block, reading it from the file if it is not
+	 * already in the pool, and return the buffer that holds it.
+	 * @param blockNum
+	 * @return
+	 */
+	public BlockBuffer pin(long blockNum) {
+		int f;
+		while (true) {
+			synchronized (this) {
+				Integer frame = pageTable.get(blockNum);
+				while (frame != null) {
+					f = frame;
+					pinCount[f]++;
+					referenced[f] = true;
+					if (prefetched[f]) {
+						prefetched[f] = false;
+						prefetchHits++;
+					}
+					while (loading[f]) {
+						waitForLoad();
+					}
+					if (frameBlock[f] == blockNum) {
+						hits++;
+						return frames[f];
+					}
+					// the read failed; try it again
+					pinCount[f]--;
+					frame = pageTable.get(blockNum);
+				}
+				waitForVictim();
+				f = chooseVictim();
+				if (!dirty[f]) {
+					misses++;
+					assignFrame(f, blockNum);
+					pinCount[f]++;
+					referenced[f] = true;
+					loading[f] = true;
+					break;
+				}
+				claimVictim(f);
+			}
+			cleanVictim(f);
+		}
+		
+		// read the block without holding the lock; the frame is pinned,
+		// so it can't be chosen as a victim meanwhile
+		BlockBuffer buf = frames[f];
+		int n;
+		try {
+			n = bf.read(blockNum, buf);
+		} catch (RuntimeException e) {
+			failLoad(f);
+			throw e;
+		}
+		if (n < bf.blockSize()) {
+			// block is past the end of the file
+			Arrays.fill(buf.buffer.array(), Math.max(n, 0), bf.blockSize(), (byte)0);
+		}
+		synchronized (this) {
+			loading[f] = false;
+			notifyAll();
+		}
+		return buf;
+	}
+
+	/**
+	 * Pin the given block without reading it from the file.  The block
+	 * is zero-filled and marked dirty.  Use this for blocks that are
+	 * about to be initialized.
+	 * @param blockNum
+	 * @return
+	 */
+	public BlockBuffer pinNew(long blockNum) {
+		while (true) {
+			int f;
+			synchronized (this) {
+				Integer frame = pageTable.get(blockNum);
+				while (frame != null && loading[frame]) {
+					waitForLoad();
+					// the read may have failed, taking the block out of the pool
+					frame = pageTable.get(blockNum);
+				}
+				if (frame != null) {
+					f = frame;
+				} else {
+					waitForVictim();
+					f = chooseVictim();
+					if (!dirty[f]) {
+						assignFrame(f, blockNum);
+					}
+				}
+				if (!dirty[f] || frame != null) {
+					Arrays.fill(frames[f].buffer.array(), (byte)0);
+					prefetched[f] = false;
+					dirty[f] = true;
+					pinCount[f]++;
+					referenced[f] = true;
+					return frames[f];
+				}
+				claimVictim(f);
+			}
+			cleanVictim(f);
+		}
+	}
+
+	/**
+	 * Unpin the given block.  If isDirty is true, the block was
+	 * modified and must eventually be written back to the file.
+	 * @param blockNum
+	 * @param isDirty
+	 */
+	public synchronized void unpin(long blockNum, boolean isDirty) {
+		int f = frameOf(blockNum);
+		if (pinCount[f] == 0) {
+			throw new IllegalStateException("block "+blockNum+" is not pinned");
+		}
+		pinCount[f]--;
+		if (isDirty) {
+			dirty[f] = true;
+		}
+	}
+
+	/**
+	 * Return the buffer holding a block that the caller has pinned.
+	 * @param blockNum
+	 * @return
+	 */
+	public synchronized BlockBuffer getPinned(long blockNum) {
+		int f = frameOf(blockNum);
+		if (pinCount[f] == 0) {
+			throw new IllegalStateException("block "+blockNum+" is not pinned");
+		}
+		return frames[f];
+	}
+
+	/**
+	 * Mark a pinned block as modified.  This is useful for blocks that
+	 * stay pinned for a long time.
+	 * @param blockNum
+	 */
+	public synchronized void markDirty(long blockNum) {
+		int f = frameOf(blockNum);
+		if (pinCount[f] == 0) {
+			throw new IllegalStateException("block "+blockNum+" is not pinned");
+		}
+		dirty[f] = true;
+	}
+
+	/**
+	 * Set the write-ahead log for the blocks of this pool.
+	 * @param log
+	 */
+	public synchronized void setLog(WriteAheadLog log) {
+		this.log = log;
+	}
+	
+	/**
+	 * Record that a pinned block was changed under the log record with
+	 * the given LSN.  The block won't be written back until the log is
+	 * flushed up to lsn.  The block is also marked dirty.
+	 * @param blockNum
+	 * @param lsn
+	 */
+	public synchronized void setPageLSN(long blockNum, long lsn) {
+		int f = frameOf(blockNum);
+		if (pinCount[f] == 0) {
+			throw new IllegalStateException("block "+blockNum+" is not pinned");
+		}
+		pageLSN[f] = Math.max(pageLSN[f], lsn);
+		dirty[f] = true;
+	}
+	
+	/**
+	 * Write all dirty blocks back to the file.
+	 */
+	public synchronized void flush() {
+		for (int f = 0; f < frames.length; f++) {
+			// a victim may be being written back (see cleanVictim)
+			while (loading[f]) {
+				waitForLoad();
+			}
+			if (dirty[f]) {
+				writeBack(f);
+			}
+		}
+	}
+
+	/**
+	 * Read the given blocks into the pool ahead of use, without pinning
+	 * them.  Blocks already in the pool are skipped, and each run of
+	 * consecutive block numbers is read with one multi-block read.  At
+	 * most a quarter of the frames are filled by one call.
+	 * @param blockNums block numbers, in increasing order
+	 * @param n number of blocks
+	 */
+	public void prefetch(long[] blockNums, int n) {
+		int[] frameList = new int[Math.min(n, maxPrefetch())];
+		long[] blockList = new long[frameList.length];
+		int[] victims = new int[frameList.length];
+		int m = 0;
+		int numVictims = 0;
+		synchronized (this) {
+			for (int i = 0; i < n && m < frameList.length; i++) {
+				if (pageTable.containsKey(blockNums[i])) {
+					continue;
+				}
+				if (!hasVictim()) {
+					break;
+				}
+				int f = chooseVictim();
+				if (dirty[f]) {
+					// clean the victim for later use, but don't read
+					// ahead into it
+					claimVictim(f);
+					victims[numVictims++] = f;
+					if (numVictims == victims.length) {
+						break;
+					}
+					i--;
+					continue;
+				}
+				assignFrame(f, blockNums[i]);
+				pinCount[f]++;
+				referenced[f] = true;
+				loading[f] = true;
+				prefetched[f] = true;
+				frameList[m] = f;
+				blockList[m] = blockNums[i];
+				m++;
+			}
+		}
+		
+		// read outside the lock, as for a miss in pin()
+		int i = 0;
+		try {
+			while (i < m) {
+				int j = i + 1;
+				while (j < m && blockList[j] == blockList[j-1] + 1) {
+					j++;
+				}
+				BlockBuffer[] bufs = new BlockBuffer[j - i];
+				for (int k = i; k < j; k++) {
+					bufs[k - i] = frames[frameList[k]];
+				}
+				bf.readBlocks(blockList[i], bufs, j - i);
+				i = j;
+			}
+		} finally {
+			synchronized (this) {
+				for (int k = 0; k < m; k++) {
+					if (k < i) {
+						loading[frameList[k]] = false;
+						pinCount[frameList[k]]--;
+					} else {
+						// not read
+						failLoad(frameList[k]);
+					}
+				}
+				prefetches += i;
+				notifyAll();
+			}
+			for (int k = 0; k < numVictims; k++) {
+				cleanVictim(victims[k]);
+			}
+		}
+	}
+	
+	/**
+	 * Like prefetch(), but the blocks are read on a background thread
+	 * and this method returns at once.  The returned Future is done when
+	 * the blocks have been read.
+	 * @param blockNums block numbers, in increasing order
+	 * @param n number of blocks
+	 * @return
+	 */
+	public synchronized Future<?> prefetchAsync(long[] blockNums, int n) {
+		if (readAheadThread == null) {
+			readAheadThread = Executors.newSingleThreadExecutor(r -> {
+				Thread t = new Thread(r, "read-ahead");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+		long[] blocks = Arrays.copyOf(blockNums, n);
+		return readAheadThread.submit(() -> prefetch(blocks, blocks.length));
+	}
+	
+	/**
+	 * Return the largest number of blocks that one prefetch will read.
+	 */
+	public int maxPrefetch() {
+		return Math.max(1, frames.length / 4);
+	}
+	
+	/**
+	 * Write all dirty blocks back to the file and empty the pool.  The
+	 * file itself is not closed.  Pending background reads are finished
+	 * first.
+	 */
+	public void close() {
+		ExecutorService t;
+		synchronized (this) {
+			t = readAheadThread;
+			readAheadThread = null;
+		}
+		if (t != null) {
+			t.shutdown();
+			try {
+				t.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			flush();
+			pageTable.clear();
+			for (int f = 0; f < frames.length; f++) {
+				frameBlock[f] = -1;
+				pinCount[f] = 0;
+				referenced[f] = false;
+				prefetched[f] = false;
+			}
+		}
+	}
+
+	/**
+	 * Copy the given block into a buffer owned by the caller.  The
+	 * block is read through the pool, so a cached block is not read
+	 * from the file again.
+	 * @param blockNum
+	 * @param dest
+	 */
+	public void copyBlock(long blockNum, BlockBuffer dest) {
+		BlockBuffer frame = pin(blockNum);
+		System.arraycopy(frame.buffer.array(), 0, dest.buffer.array(), 0, bf.blockSize());
+		unpin(blockNum, false);
+	}
+	
+	/**
+	 * Borrow a private block buffer.  It is not a frame of the pool, and
+	 * no other caller uses it until it is given back with returnBuffer().
+	 */
+	public synchronized BlockBuffer borrowBuffer() {
+		BlockBuffer buf = spareBuffers.poll();
+		return (buf != null) ? buf : bf.getBuffer();
+	}
+	
+	/**
+	 * Give back a buffer obtained from borrowBuffer().  The caller must
+	 * not use it afterwards.
+	 * @param buf
+	 */
+	public synchronized void returnBuffer(BlockBuffer buf) {
+		if (spareBuffers.size() < maxSpareBuffers) {
+			spareBuffers.push(buf);
+		}
+	}
+	
+	/**
+	 * Return the number of frames in the pool.
+	 */
+	public int numFrames() {
+		return frames.length;
+	}
+
+	/**
+	 * Return the number of pins that found the block already in the pool.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Return the number of pins that had to read the block from the file.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Return the number of blocks written back to the file.
+	 */
+	public synchronized long getBlockWrites() {
+		return blockWrites;
+	}
+	
+	/**
+	 * Return the number of blocks read ahead by prefetch().
+	 */
+	public synchronized long getPrefetches() {
+		return prefetches;
+	}
+	
+	/**
+	 * Return the number of prefetched blocks that were later pinned.
+	 */
+	public synchronized long getPrefetchHits() {
+		return prefetchHits;
+	}
+
+	// wait for some frame to finish loading
+	private void waitForLoad() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for a block to be read");
+		}
+	}
+
+	// Give up on reading frame f, which is loading and pinned by the
+	// reader: the frame is unpinned and emptied, and the block taken out
+	// of the page table, so that the next pin of the block reads it again.
+	private synchronized void failLoad(int f) {
+		loading[f] = false;
+		pinCount[f]--;
+		prefetched[f] = false;
+		pageTable.remove(frameBlock[f]);
+		frameBlock[f] = -1;
+		notifyAll();
+	}
+
+	// return the frame holding the given block, which must be in the pool
+	private int frameOf(long blockNum) {
+		Integer f = pageTable.get(blockNum);
+		if (f == null) {
+			throw new IllegalStateException("block "+blockNum+" is not in the buffer pool");
+		}
+		return f;
+	}
+
+	// Enter the given block in the page table in frame f, a clean victim,
+	// evicting the frame's old block.
+	private void assignFrame(int f, long blockNum) {
+		if (frameBlock[f] >= 0) {
+			pageTable.remove(frameBlock[f]);
+		}
+		frameBlock[f] = blockNum;
+		dirty[f] = false;
+		prefetched[f] = false;
+		pageTable.put(blockNum, f);
+	}
+
+	// Claim the dirty victim f, so that cleanVictim() can write it back
+	// without holding the lock.
+	private void claimVictim(int f) {
+		pinCount[f]++;
+		loading[f] = true;
+		dirty[f] = false;
+	}
+
+	// Write back the victim f, which claimVictim() claimed, without
+	// holding the lock, and then release it.  If the write fails, the
+	// frame stays dirty.
+	private void cleanVictim(int f) {
+		boolean done = false;
+		try {
+			if (log != null && pageLSN[f] > 0) {
+				log.flush(pageLSN[f]);
+			}
+			bf.write(frameBlock[f], frames[f]);
+			done = true;
+		} finally {
+			synchronized (this) {
+				if (done) {
+					pageLSN[f] = 0;
+					blockWrites++;
+				} else {
+					dirty[f] = true;
+				}
+				loading[f] = false;
+				pinCount[f]--;
+				notifyAll();
+			}
+		}
+	}
+
+	// CLOCK replacement: sweep the frames, clearing reference bits, until
+	// an unpinned frame with a clear reference bit is found
+	private int chooseVictim() {
+		int n = frames.length;
+		// two full sweeps are enough to clear every reference bit
+		for (int i = 0; i < 2*n; i++) {
+			int f = clockHand;
+			clockHand = (clockHand + 1) % n;
+			if (pinCount[f] > 0) {
+				continue;
+			}
+			if (frameBlock[f] < 0 || !referenced[f]) {
+				return f;
+			}
+			referenced[f] = false;
+		}
+		throw new IllegalStateException("Error: all buffer pool frames are pinned");
+	}
+
+	// Wait while every frame is pinned and some are being read or written
+	// back, since those will soon be unpinned.
+	private void waitForVictim() {
+		while (!hasVictim()) {
+			boolean busy = false;
+			for (int f = 0; f < frames.length; f++) {
+				busy |= loading[f];
+			}
+			if (!busy) {
+				return;
+			}
+			waitForLoad();
+		}
+	}
+
+	// return true if some frame is unpinned, so chooseVictim() will succeed
+	private boolean hasVictim() {
+		for (int f = 0; f < frames.length; f++) {
+			if (pinCount[f] == 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	// write frame f back to the file, after the log records for its
+	// changes (write-ahead rule)
+	private void writeBack(int f) {
+		if (log != null && pageLSN[f] > 0) {
+			log.flush(pageLSN[f]);
+		}
+		bf.write(frameBlock[f], frames[f]);
+		pageLSN[f] = 0;
+		dirty[f] = false;
+		blockWrites++;
+	}
+
+	@Override
+	public String toString() {
+		return "buffer pool: "+frames.length+" frames, "+hits+" hits, "+misses+" misses, "+blockWrites+" block writes, "+prefetchHits+" of "+prefetches+" prefetched blocks used";
+	}
+}
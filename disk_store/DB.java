@@ -46,4 +46,14 @@ public interface DB {
 	 * @return
 	 */
 	List<Record> lookup(String field, int key);
+
+	/**
+	 * Return all records in which the given field has a search key value
+	 * between lo and hi, inclusive.
+	 * @param field
+	 * @param lo
+	 * @param hi
+	 * @return
+	 */
+	List<Record> lookupRange(String field, int lo, int hi);
 }
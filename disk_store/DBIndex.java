@@ -5,7 +5,17 @@ import java.util.List;
 /**
  * A database index that associates search key values with the block
  * numbers containing records with that search key.  Note that a search
- * key is not necessarily a superkey.
+ * key is not necessarily a superkey.  Block numbers are longs, like
+ * those of BlockedFile.
+ * 
+ * The entries of an index form a multiset: a key/blockNum pair may be
+ * inserted more than once, and the index keeps a copy for each insert
+ * until a delete removes it.  A HeapDB relies on this, since a block
+ * with several records with the same key gets one entry for each.
+ * 
+ * An index treats the long values as opaque.  Instead of a block number,
+ * a HeapDB may store a record ID, which names the block and the slot
+ * of the record within it (see HeapDB.setRecordIdIndexes).
  * 
  * @author Glenn
  *
@@ -15,26 +25,60 @@ public interface DBIndex {
 
 	/**
 	 * Insert the key/blockNum pair into the index.  If the pair is
-	 * already present, it is not inserted.
+	 * already present, another copy of it is added.
 	 * @param key value of a search key
 	 * @param blockNum a DB block number
 	 */
-	public void insert(int key, int blockNum);
+	public void insert(int key, long blockNum);
+	
+	/**
+	 * Insert n key/blockNum pairs into the index, where keys[i] is
+	 * paired with blockNums[i].  The result is the same as calling
+	 * insert() for each pair, but implementations may build their
+	 * entries in bulk instead of inserting one pair at a time.
+	 * @param keys values of a search key
+	 * @param blockNums DB block numbers
+	 * @param n number of pairs
+	 */
+	public default void insertAll(int[] keys, long[] blockNums, int n) {
+		for (int i = 0; i < n; i++) {
+			insert(keys[i], blockNums[i]);
+		}
+	}
 	
 	/**
-	 * Delete the key/blockNum pair from the index.  If the pair is
-	 * not present, nothing is done.
+	 * Delete one copy of the key/blockNum pair from the index.  If the
+	 * pair is not present, nothing is done.
 	 * @param key value of a search key
 	 * @param blockNum a DB block number
 	 */
-	public void delete(int key, int blockNum);
+	public void delete(int key, long blockNum);
 	
 	/**
 	 * Return a list of all the blockNum values associated with the
-	 * given search key in the index (return an empty list if the
-	 * key does not appear in the index).
+	 * given search key in the index, each once however many copies of
+	 * its pair there are (return an empty list if the key does not
+	 * appear in the index).
+	 * @param key value of a search key
+	 * @return
+	 */
+	public List<Long> lookup(int key);
+
+	/**
+	 * Copy the blockNum values associated with the given search key into
+	 * dest, and return the number of values.  If there are more values
+	 * than fit in dest, only the first dest.length are copied, and the
+	 * caller can try again with a larger array.  Implementations may do
+	 * this without allocating memory.
 	 * @param key value of a search key
+	 * @param dest array to receive the values
 	 * @return
 	 */
-	public List<Integer> lookup(int key);
+	public default int lookup(int key, long[] dest) {
+		List<Long> values = lookup(key);
+		for (int i = 0; i < values.size() && i < dest.length; i++) {
+			dest[i] = values.get(i);
+		}
+		return values.size();
+	}
 }
@@ -0,0 +1,29 @@
+package disk_store;
+
+/**
+ * A DBIndex that is kept in its own file rather than in memory.
+ *
+ */
+
+public interface DiskIndex extends DBIndex {
+
+	/**
+	 * Remove all entries from the index.
+	 */
+	public void clear();
+
+	/**
+	 * Write all changes to the index file.
+	 */
+	public void flush();
+
+	/**
+	 * Write all changes to the index file, and close it.
+	 */
+	public void close();
+
+	/**
+	 * Close the index and delete its file.
+	 */
+	public void drop();
+}
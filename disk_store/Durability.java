@@ -0,0 +1,23 @@
+package disk_store;
+
+/**
+ * How durable a change to a HeapDB is when the call that made it returns.
+ * Every change is written to the database's write-ahead log; the levels
+ * differ in when the log is forced to disk.
+ */
+public enum Durability {
+	/** The log is never forced; a crash may lose any recent change. */
+	NONE,
+
+	/**
+	 * The log is forced in the background every few milliseconds, and by
+	 * HeapDB.sync().  A crash loses at most the last batch of changes.
+	 */
+	BATCH,
+
+	/**
+	 * Each insert, delete or modify waits until its log record is forced.
+	 * Concurrent writers share forces (group commit).
+	 */
+	OPERATION
+}
@@ -2,107 +2,377 @@ package disk_store;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 /**
- * A hash index.  
- * 
+ * A hash index.
+ *
+ */
+
+/* Implementation notes:
+ *  - An open-addressing hash table with linear probing, held in
+ *    primitive arrays.  Slot i is in use if counts[i] > 0, and then
+ *    holds search key keys[i] with counts[i] block numbers.
+ *  - A key with one block number keeps it in vals[i].  A key with more
+ *    keeps them all in the spill array more[i], sorted, so that copies
+ *    of a block number are next to each other.
+ *  - Deleting a key shifts the following keys of its probe run back,
+ *    so there are no tombstones.
  */
 
 public class HashIndex implements DBIndex {
 
+	private static final int initialCapacity = 16;   // a power of 2
+
+	private int[] keys;
+	private long[] vals;
+	private long[][] more;
+	private int[] counts;
+	private int numKeys;        // number of slots in use
+	private int size;           // number of entries
+
 	/**
 	 * Create an new index.
 	 */
-	private Map<Integer, ArrayList<Integer>> index;
-	
 	public HashIndex() {
-		index = new HashMap<Integer, ArrayList <Integer>>();
+		allocate(initialCapacity);
+	}
+
+	private void allocate(int capacity) {
+		keys = new int[capacity];
+		vals = new long[capacity];
+		more = new long[capacity][];
+		counts = new int[capacity];
+	}
+
+	// return the slot where a probe for key starts
+	private int home(int key) {
+		int h = key * 0x9E3779B9;
+		return (h ^ (h >>> 16)) & (keys.length - 1);
+	}
+
+	// return the slot holding key, or -1 if the key is not in the table
+	private int find(int key) {
+		int mask = keys.length - 1;
+		for (int i = home(key); counts[i] > 0; i = (i + 1) & mask)
+		{
+			if (keys[i] == key)
+			{
+				return i;
+			}
+		}
+		return -1;
 	}
-	
+
+	@Override
+	public List<Long> lookup(int key) {
+		List <Long> result = new ArrayList <Long>();
+		int i = find(key);
+		if (i < 0)
+		{
+			return result;
+		}
+		if (counts[i] == 1)
+		{
+			result.add(vals[i]);
+			return result;
+		}
+		long[] blocks = more[i];
+		for (int j = 0; j < counts[i]; j++)
+		{
+			if (j == 0 || blocks[j] != blocks[j-1])
+			{
+				result.add(blocks[j]);
+			}
+		}
+		return result;
+	}
+
+	// Copy the block numbers for a search key into dest, without
+	// allocating anything.
 	@Override
-	public List<Integer> lookup(int key) {
-		List <Integer> result = new ArrayList <Integer>();
-		List <Integer> result2 = new ArrayList <Integer>();
-		if (index.containsKey(key))
+	public int lookup(int key, long[] dest) {
+		int i = find(key);
+		if (i < 0)
+		{
+			return 0;
+		}
+		if (counts[i] == 1)
 		{
-			result = index.get(key);
-			Set <Integer> set = new HashSet <Integer>();
-			for (int r : result)
+			if (dest.length > 0)
 			{
-				set.add(r);
+				dest[0] = vals[i];
 			}
-			for (int s : set)
+			return 1;
+		}
+		long[] blocks = more[i];
+		int n = 0;
+		for (int j = 0; j < counts[i]; j++)
+		{
+			if (j == 0 || blocks[j] != blocks[j-1])
 			{
-				result2.add(s);
+				if (n < dest.length)
+				{
+					dest[n] = blocks[j];
+				}
+				n++;
 			}
 		}
-		return result2;
+		return n;
 	}
-	
+
 	@Override
-	public void insert(int key, int blockNum) {
-		ArrayList <Integer> hold = new ArrayList <Integer>();
-		if (index.containsKey(key))
+	public void insert(int key, long blockNum) {
+		int i = find(key);
+		if (i < 0)
+		{
+			// new key; keep the table at most half full
+			if (2 * (numKeys + 1) > keys.length)
+			{
+				rehash(2 * keys.length);
+			}
+			int mask = keys.length - 1;
+			for (i = home(key); counts[i] > 0; i = (i + 1) & mask)
+				;
+			keys[i] = key;
+			vals[i] = blockNum;
+			counts[i] = 1;
+			numKeys++;
+		}
+		else if (counts[i] == 1)
 		{
-			hold = index.get(key);
-			hold.add(blockNum);
-			Collections.sort(hold);
-			index.put(key, hold);
+			// move the block numbers to a spill array
+			long[] blocks = new long[4];
+			blocks[0] = Math.min(vals[i], blockNum);
+			blocks[1] = Math.max(vals[i], blockNum);
+			more[i] = blocks;
+			counts[i] = 2;
 		}
 		else
 		{
-			hold.add(blockNum);
-			index.put(key, hold);
+			long[] blocks = more[i];
+			int n = counts[i];
+			if (n == blocks.length)
+			{
+				blocks = more[i] = Arrays.copyOf(blocks, 2 * n);
+			}
+			// block numbers usually arrive in increasing order
+			int pos = n;
+			if (n > 0 && blocks[n-1] > blockNum)
+			{
+				pos = insertPosition(blocks, n, blockNum);
+				System.arraycopy(blocks, pos, blocks, pos + 1, n - pos);
+			}
+			blocks[pos] = blockNum;
+			counts[i] = n + 1;
 		}
+		size++;
 	}
 
-	@Override
-	public void delete(int key, int blockNum) {
-		if (index.containsKey(key))
+	// return the position of the first of the n block numbers in blocks
+	// that is > blockNum
+	private static int insertPosition(long[] blocks, int n, long blockNum) {
+		int l = 0;
+		int r = n;
+		while (l < r)
 		{
-			ArrayList <Integer> hold = new ArrayList <Integer>();
-			hold = index.get(key);
-			int ind = hold.indexOf(blockNum);
-			if (ind != -1)
+			int mid = (l + r) >>> 1;
+			if (blocks[mid] <= blockNum)
 			{
-				hold.remove(ind);
-				if (hold.size() == 0)
-				{
-					index.remove(key);
-				}
-				else
+				l = mid + 1;
+			}
+			else
+			{
+				r = mid;
+			}
+		}
+		return l;
+	}
+
+	// move all keys to a new table with the given capacity
+	private void rehash(int capacity) {
+		int[] oldKeys = keys;
+		long[] oldVals = vals;
+		long[][] oldMore = more;
+		int[] oldCounts = counts;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for (int j = 0; j < oldKeys.length; j++)
+		{
+			if (oldCounts[j] > 0)
+			{
+				int i = home(oldKeys[j]);
+				while (counts[i] > 0)
 				{
-					index.put(key, hold);
+					i = (i + 1) & mask;
 				}
+				keys[i] = oldKeys[j];
+				vals[i] = oldVals[j];
+				more[i] = oldMore[j];
+				counts[i] = oldCounts[j];
+			}
+		}
+	}
+
+	// Insert many key/block pairs.  The pairs are sorted by key and then
+	// by block number, so that each key's block numbers are added at the
+	// end of its spill array, and the table is grown once, to fit every
+	// key (some may already be present).
+	@Override
+	public void insertAll(int[] keys, long[] blockNums, int n) {
+		long[] order = OrdIndex.sortedByKey(keys, n);
+		long[] sorted = new long[n];
+		for (int j = 0; j < n; j++)
+		{
+			sorted[j] = blockNums[OrdIndex.sortPosition(order[j])];
+		}
+
+		// make room for all the new keys at once, instead of rehashing
+		// each time the table fills
+		int newKeys = 0;
+		for (int j = 0; j < n; j++)
+		{
+			if (j == 0 || OrdIndex.sortKey(order[j]) != OrdIndex.sortKey(order[j-1]))
+			{
+				newKeys++;
+			}
+		}
+		int capacity = this.keys.length;
+		while (2 * (numKeys + newKeys) > capacity)
+		{
+			capacity *= 2;
+		}
+		if (capacity > this.keys.length)
+		{
+			rehash(capacity);
+		}
+
+		for (int j = 0; j < n; )
+		{
+			int start = j;
+			int key = OrdIndex.sortKey(order[j]);
+			while (j < n && OrdIndex.sortKey(order[j]) == key)
+			{
+				j++;
+			}
+			Arrays.sort(sorted, start, j);
+			for (int k = start; k < j; k++)
+			{
+				insert(key, sorted[k]);
+			}
+		}
+	}
+
+	@Override
+	public void delete(int key, long blockNum) {
+		int i = find(key);
+		if (i < 0)
+		{
+			return;
+		}
+		if (counts[i] == 1)
+		{
+			if (vals[i] == blockNum)
+			{
+				removeSlot(i);
+				size--;
+			}
+			return;
+		}
+		long[] blocks = more[i];
+		int n = counts[i];
+		int pos = insertPosition(blocks, n, blockNum) - 1;
+		if (pos < 0 || blocks[pos] != blockNum)
+		{
+			return;
+		}
+		System.arraycopy(blocks, pos + 1, blocks, pos, n - pos - 1);
+		n--;
+		if (n == 1)
+		{
+			vals[i] = blocks[0];
+			more[i] = null;
+		}
+		counts[i] = n;
+		size--;
+	}
+
+	// Empty slot i, and move back any keys after it in the probe run that
+	// can no longer be reached past the empty slot.
+	private void removeSlot(int i) {
+		int mask = keys.length - 1;
+		int j = i;
+		while (true)
+		{
+			counts[i] = 0;
+			more[i] = null;
+			j = (j + 1) & mask;
+			if (counts[j] == 0)
+			{
+				break;
+			}
+			// the key in slot j can stay if its home is cyclically in (i, j]
+			int h = home(keys[j]);
+			if ((i < j) ? (i < h && h <= j) : (i < h || h <= j))
+			{
+				continue;
+			}
+			keys[i] = keys[j];
+			vals[i] = vals[j];
+			more[i] = more[j];
+			counts[i] = counts[j];
+			i = j;
+		}
+		numKeys--;
+	}
+
+	/**
+	 * Save the entries of the index in the given file.
+	 * @param filename
+	 */
+	public void save(String filename) {
+		int[] keys = new int[size];
+		long[] blockNums = new long[size];
+		int n = 0;
+		for (int i = 0; i < this.keys.length; i++)
+		{
+			for (int j = 0; j < counts[i]; j++)
+			{
+				keys[n] = this.keys[i];
+				blockNums[n] = (counts[i] == 1) ? vals[i] : more[i][j];
+				n++;
 			}
 		}
+		IndexFile.write(filename, keys, blockNums, n);
+	}
+
+	/**
+	 * Return an index holding the entries saved in the given file.
+	 * @param filename
+	 * @return
+	 */
+	public static HashIndex load(String filename) {
+		IndexFile f = IndexFile.read(filename);
+		HashIndex index = new HashIndex();
+		index.insertAll(f.keys, f.vals, f.n);
+		return index;
 	}
-	
+
 	@Override
 	public String toString() {
 		String str = "";
-		Set <Integer> keys = index.keySet();
-		for (Integer k : keys)
+		for (int i = 0; i < keys.length; i++)
 		{
-			str += k + ": " + index.get(k) + "\n";
+			if (counts[i] > 0)
+			{
+				str += keys[i] + ": " + lookup(keys[i]) + "\n";
+			}
 		}
 		return str;
 	}
-	
+
 
 	public int size() {
-		int size = 0;
-		Set <Integer> keys = index.keySet();
-		for (Integer k : keys)
-		{
-			size+=index.get(k).size();
-		}
 		return size;
 	}
 }
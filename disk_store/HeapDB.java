@@ -1,8 +1,19 @@
 package disk_store;
 
+import java.io.File;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.IntPredicate;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * A heap file implementation of the DB interface.
@@ -18,56 +29,189 @@ public class HeapDB implements DB, Iterable<Record>{
 	// - block 0 is used to store metadata
 	//    - first 4 bytes: an int giving database file type (0 = heap type)
 	//    - next 4 bytes:  an int giving version number
-	//    - next 4 bytes:  an int giving number of bytes in schema
-	//    - next bytes:    schema for this database
-	// - block 1 is used as a block bitmap, showing which blocks
-	//   are valid (i.e. have been initialized and contain a
-	//   record bitmap).  In the bitmap, the leftmost bit is
-	//   bit 0, and corresponds to block 0.
+	//    - next 4 bytes:  an int, 1 if the database was closed cleanly,
+	//                     0 while it is open
+	//    - next 4 bytes:  an int, 1 if the indexes hold record IDs
+	//    - next bytes:    schema for this database (see Schema.serialize)
+	//    - next bytes:    a byte for each field, giving the kind of
+	//                     index on it (0 for none)
+	//    - next bytes:    a byte for each field, giving the bits per
+	//                     record of its Bloom filters (0 for none)
+	// - block 1 is the root of the block directory, and the rest of
+	//   the file is a sequence of extents, each a directory page
+	//   followed by data blocks.  The directory shows which blocks
+	//   are valid (i.e. have been initialized and contain a record
+	//   bitmap) and how many free record slots each block has (see
+	//   BlockDirectory).
+	// All blocks are accessed through a buffer pool.  The directory
+	// root stays pinned in the pool while the database is open.
+	
+	// indexes:
+	// - close() saves the entries of in-memory indexes, including the
+	//   primary key index, in files next to the database file (see
+	//   IndexFile), and closes on-disk indexes.  open() restores each
+	//   index from its file the first time it is used (see LazyIndex).
+	// - an index whose file may be out of date, because the database
+	//   was not closed, is rebuilt by a scan instead.
+	// - an online index build (see setOnlineIndexBuilds) reads the blocks
+	//   a run at a time under the read lock, so writers can run between
+	//   runs.  Their changes to runs already read are captured and applied
+	//   to the new index before it is published (see IndexBuild).
+	
+	// zone map:
+	// - a ZoneMap keeps the least and greatest value of each integer
+	//   field in each data block, and scans for a value or a range of
+	//   values skip the blocks that can't hold a match.  Inserts widen a
+	//   block's summary; a delete or modify that removes the least or
+	//   greatest value recomputes it from the block.
+	// - close() saves the zone map in filename.zones.  If the database
+	//   was not closed, it is rebuilt by a scan when it is first needed.
+	// - an integer field may also have a Bloom filter for each block (see
+	//   createBloomFilter), which lookups of a value use to skip blocks.
+	//   The filters are saved and rebuilt like the zone map, in a file
+	//   for each field.
+	
+	// logging:
+	// - every change to a data block is appended to a write-ahead log,
+	//   in the file filename.wal (see WriteAheadLog), and the buffer pool
+	//   writes a changed block back only after its log records.  When and
+	//   whether an update waits for its log record to reach the disk is
+	//   set by the Durability level.
+	// - a checkpoint writes all changed blocks back and empties the log.
+	//   This is done when the database is created or closed, and when the
+	//   log gets large.
+	// - open() redoes the changes in the log, which is empty unless the
+	//   database was not closed.  Directory pages are not logged, so the
+	//   directory entries are recomputed from the record bitmaps.
+	
+	// concurrency:
+	// - lookups and scans take the read lock, so any number of them can
+	//   run at once; insert, delete, bulkLoad and index changes take the
+	//   write lock.  The indexes are only modified under the write lock,
+	//   so readers can use them without further locking.
+	// - every lookup or iterator uses its own record objects, and block
+	//   I/O is positional (see BlockedFile), so readers do not share any
+	//   mutable state except the buffer pool, which is synchronized.
 	
 	// block layout:
 	// - each block contains a record bit map followed by the records 
 	//   themselves
 	
 	// TODO
-	// - add a modify() method and test it
 	// - create a HashDB implementation of the DB interface
 	
+	private String filename;
 	private BlockedFile bf;
+	private BufferPool pool;
 	private Schema schema;
 	
+	// default number of buffer pool frames
+	private static final int defaultPoolFrames = 256;
+	
+	// number of blocks that scans read ahead of the block they are on
+	private static final int defaultReadAheadWindow = 32;
+	private volatile int readAheadWindow = defaultReadAheadWindow;
+	
 	// metadata block
 	private static final int metadataBlock = 0;  // index of block containing metadata
 	private static final int dbType = 0;
-	private static final int dbVersion = 1;
+	private static final int dbVersion = 5;
 	private static final int fileTypePosition = 0;
 	private static final int versionPosition = fileTypePosition + Integer.BYTES;
-	private static final int schemaPosition = versionPosition + Integer.BYTES;
+	private static final int closedPosition = versionPosition + Integer.BYTES;
+	private static final int recordIdsPosition = closedPosition + Integer.BYTES;
+	private static final int schemaPosition = recordIdsPosition + Integer.BYTES;
+	
+	// index kinds, as recorded in the metadata block, and the suffixes
+	// of their file names
+	private static final int noIndex = 0;
+	private static final int orderedIndex = 1;
+	private static final int hashIndex = 2;
+	private static final int btreeIndex = 3;
+	private static final int linearHashIndex = 4;
+	private static final String[] indexSuffixes = {null, "ord", "hash", "btree", "lhash"};
+	private static final String keyIndexSuffix = "pk";
+	private static final String filterSuffix = "bloom";
 	
-	// bitmap block
-	private static final int bitmapBlock = 1;	 // index of block containing block bitmap
-	private Bitmap blockMap;			         // the bitmap object
-	private BlockBuffer blockmapBuffer;          // the buffer used for reading the block bitmap
+	// default bits per record of Bloom filters, for about 1% false positives
+	private static final int defaultFilterBits = 10;
+	private static final int maxFilterBits = 64;
 	
-	// buffer for reading/writing records, and its corresponding record bitmap
-	private BlockBuffer buffer;	
-	private Bitmap recMap;
+	// block directory
+	private static final int directoryBlock = 1;  // index of block containing directory root
+	private BlockDirectory directory;
 	
 	// block layout (see details above)
 	private int recSize;		// number of bytes per record
 	private int recMapSize;     // number of bytes in record bitmap
 	private int recsPerBlock;   // number of records per block
+	private int[] fieldOffsets; // fieldOffsets[i] is the byte position of field i within a record
+	private int[] intFields;    // the numbers of the integer fields
+	
+	// number of records staged at a time by bulkLoad
+	private static final int bulkBatchSize = 4096;
+	
+	// number of data blocks read by each task of an index build
+	private static final int buildBlocksPerTask = 64;
 	
 	// indexes[fieldNum] is the index for the field of the schema with
 	// with the given number
 	DBIndex[] indexes;
 	
+	// builds[fieldNum] is the online build of a new index for the field,
+	// if one is running
+	private IndexBuild[] builds;
+	private volatile boolean onlineIndexBuilds = false;
+	
+	// primary key index, always present; it is separate from indexes[]
+	// so that indexes[] is only used for indexes the user creates
+	private DBIndex keyIndex;
+	
+	// If recordIds is true, the indexes map keys to record IDs, which
+	// give the block number and the slot of a record:
+	// (blockNum << slotBits) | slot.  Otherwise they map keys to block
+	// numbers, and every record in the block must be checked.
+	private boolean recordIds = true;
+	private int slotBits;
+	
+	// each thread's buffer for the values found by an index lookup, so
+	// that lookups don't allocate
+	private final ThreadLocal<long[]> lookupBuffer = ThreadLocal.withInitial(() -> new long[16]);
+	private static final long[] noValues = new long[0];
+	
+	// per-block summaries of the integer fields, or null until they are
+	// first needed after open() (see zoneMap())
+	private volatile ZoneMap zones;
+	private final Object zoneMapBuild = new Object();
+	
+	// filterBits[fieldNum] is the number of bits per record of the Bloom
+	// filters of the field, or 0 if it has none, and filters.get(fieldNum) are
+	// the filters, or null until they are first needed after open() (see
+	// filtersFor(), which builds them under filterBuilds[fieldNum])
+	private int[] filterBits;
+	private AtomicReferenceArray<BloomFilters> filters;
+	private Object[] filterBuilds;
+	
+	// readers share the read lock; updates take the write lock
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	
+	// write-ahead log, and the log size at which a checkpoint is taken
+	private WriteAheadLog log;
+	private volatile Durability durability = Durability.BATCH;
+	private static final long checkpointLogSize = 64L << 20;
+	
 	// private constructor
-	private HeapDB(BlockedFile bf, Schema schema) {
+	private HeapDB(BlockedFile bf, Schema schema, int poolFrames) {
 		this.bf = bf;
+		this.pool = new BufferPool(bf, poolFrames);
 		this.schema = schema;
 		setRecordLayout();
 		indexes = new DBIndex[schema.size()];
+		builds = new IndexBuild[schema.size()];
+		filterBits = new int[schema.size()];
+		filters = new AtomicReferenceArray<BloomFilters>(schema.size());
+		filterBuilds = newLocks(schema.size());
+		keyIndex = new HashIndex();
 	}
 	
 	/**
@@ -76,34 +220,62 @@ public class HeapDB implements DB, Iterable<Record>{
 	 * @param schema
 	 */
 	public HeapDB(String filename, Schema schema) {
-		bf = new BlockedFile(filename);
+		this(filename, schema, false);
+	}
+	
+	/**
+	 * Create a new, empty database with the given schema.  If mapped
+	 * is true, the database file is accessed through a memory mapping.
+	 * @param filename
+	 * @param schema
+	 * @param mapped
+	 */
+	public HeapDB(String filename, Schema schema, boolean mapped) {
+		this(filename, schema, mapped, defaultPoolFrames);
+	}
+	
+	/**
+	 * Create a new, empty database with the given schema, caching
+	 * up to poolFrames blocks in memory.
+	 * @param filename
+	 * @param schema
+	 * @param mapped
+	 * @param poolFrames
+	 */
+	public HeapDB(String filename, Schema schema, boolean mapped, int poolFrames) {
+		this.filename = filename;
+		bf = new BlockedFile(filename, mapped);
+		pool = new BufferPool(bf, poolFrames);
 		this.schema = schema;
 		
 		// block 0: metadata block
-		BlockBuffer metaBuffer = bf.getBuffer();
+		BlockBuffer metaBuffer = pool.pinNew(metadataBlock);
 		metaBuffer.putInt(fileTypePosition, dbType);
 		metaBuffer.putInt(versionPosition, dbVersion);
-		int temp = metaBuffer.getInt(fileTypePosition);
 		schema.serialize(metaBuffer.buffer, schemaPosition);
-		temp = metaBuffer.getInt(versionPosition);
-		bf.write(metadataBlock, metaBuffer);
+		pool.unpin(metadataBlock, true);
+		indexes = new DBIndex[schema.size()];
+		builds = new IndexBuild[schema.size()];
+		filterBits = new int[schema.size()];
+		filters = new AtomicReferenceArray<BloomFilters>(schema.size());
+		filterBuilds = newLocks(schema.size());
+		writeMetadata(false);
 		
-		// block 1: bitmap block
-		blockmapBuffer = bf.getBuffer();
-		blockMap = new Bitmap(blockmapBuffer.buffer.array());
-		blockMap.clear();
-		blockMap.setBit(bitmapBlock, true);
-		blockMap.setBit(metadataBlock, true);
-		bf.write(bitmapBlock, blockmapBuffer);
+		// block 1: directory root; extents are added as blocks are allocated
+		directory = new BlockDirectory(pool, directoryBlock, bf.blockSize());
+		directory.create();
 		
 		setRecordLayout();
 		
-		// create a buffer for reading/writing records;
-		buffer = bf.getBuffer();
-		recMap = new Bitmap(buffer.buffer.array(), recMapSize);
+		// initialize the primary key index and the zone map
+		keyIndex = new HashIndex();
+		zones = new ZoneMap(schema.size());
 		
-		// initialize the DB index array
-		indexes = new DBIndex[schema.size()];
+		// start an empty log, and put the new database on disk
+		log = WriteAheadLog.create(logFilename(filename));
+		log.setDurability(durability);
+		pool.setLog(log);
+		checkpoint();
 	}
 	
 	/**
@@ -113,34 +285,321 @@ public class HeapDB implements DB, Iterable<Record>{
 	 * @return
 	 */
 	public static HeapDB open(String filename) {
+		return open(filename, false);
+	}
+	
+	/**
+	 * Open an existing heap database.  If mapped is true, the database
+	 * file is accessed through a memory mapping.
+	 * @param filename
+	 * @param mapped
+	 * @return
+	 */
+	public static HeapDB open(String filename, boolean mapped) {
+		return open(filename, mapped, defaultPoolFrames);
+	}
+	
+	/**
+	 * Open an existing heap database, caching up to poolFrames blocks
+	 * in memory.
+	 * @param filename
+	 * @param mapped
+	 * @param poolFrames
+	 * @return
+	 */
+	public static HeapDB open(String filename, boolean mapped, int poolFrames) {
 		// open the file and read the schema
-		BlockedFile bf = BlockedFile.open(filename);
+		BlockedFile bf = BlockedFile.open(filename, mapped);
 		
 		// read the metadata block to get the schema
 		BlockBuffer metaBuffer = bf.getBuffer();
 		bf.read(metadataBlock, metaBuffer);
-		int temp = metaBuffer.get();
 		int fileType = metaBuffer.getInt(fileTypePosition);
 		int version = metaBuffer.getInt(versionPosition);
+		if (fileType != dbType || version != dbVersion) {
+			bf.close();
+			throw new IllegalStateException("Error: "+filename+" is not a version "+dbVersion+" heap database");
+		}
 		Schema schema = Schema.deserialize(metaBuffer.buffer, schemaPosition);
+		boolean closed = metaBuffer.getInt(closedPosition) == 1;
+		boolean recordIds = metaBuffer.getInt(recordIdsPosition) == 1;
+		int kindsPosition = schemaPosition + schema.serializedLength();
+		int filterBitsPosition = kindsPosition + schema.size();
+		int[] kinds = new int[schema.size()];
+		int[] filterBits = new int[schema.size()];
+		for (int i = 0; i < kinds.length; i++) {
+			kinds[i] = metaBuffer.buffer.get(kindsPosition + i);
+			filterBits[i] = metaBuffer.buffer.get(filterBitsPosition + i) & 0xFF;
+		}
 
 		// create the database
-		HeapDB db = new HeapDB(bf, schema);
+		HeapDB db = new HeapDB(bf, schema, poolFrames);
+		db.filename = filename;
+		db.recordIds = recordIds;
+		
+		// load the block directory
+		db.directory = new BlockDirectory(db.pool, directoryBlock, bf.blockSize());
+		db.directory.load();
 		
-		// create the bitmap buffer and record buffers
-		db.blockmapBuffer = bf.getBuffer();
-		db.blockMap = new Bitmap(db.blockmapBuffer.buffer.array());
-		db.buffer = bf.getBuffer();
-		db.recMap = new Bitmap(db.buffer.buffer.array(), db.recMapSize);
+		// redo any changes that were logged but not written back
+		db.log = WriteAheadLog.open(logFilename(filename));
+		db.pool.setLog(db.log);
+		db.recover();
+		db.log.setDurability(db.durability);
+		
+		// Restore the indexes when they are first used.  Their files are
+		// out of date unless the database was closed, so the database is
+		// marked open until it is closed again.
+		int keyField = schema.getKeyIndex();
+		db.keyIndex = db.new LazyIndex(hashIndex, keyField, db.indexFilename(keyField, keyIndexSuffix), !closed);
+		for (int i = 0; i < kinds.length; i++) {
+			if (kinds[i] != noIndex) {
+				db.indexes[i] = db.new LazyIndex(kinds[i], i, db.indexFilename(i, indexSuffixes[kinds[i]]), !closed);
+			}
+		}
+		if (closed && new File(zoneFilename(filename)).exists()) {
+			db.zones = ZoneMap.load(zoneFilename(filename));
+		}
+		db.filterBits = filterBits;
+		for (int i = 0; i < filterBits.length; i++) {
+			String filterFilename = db.indexFilename(i, filterSuffix);
+			if (filterBits[i] > 0 && closed && new File(filterFilename).exists()) {
+				db.filters.set(i, BloomFilters.load(filterFilename));
+			}
+		}
+		db.writeMetadata(false);
+		db.checkpoint();
 		
 		return db;
 	}
 
+	// return the name of the log file of the given database file
+	private static String logFilename(String filename) {
+		return filename + ".wal";
+	}
+	
+	// return the name of the zone map file of the given database file
+	private static String zoneFilename(String filename) {
+		return filename + ".zones";
+	}
+	
 	/** 
-	 * Close the database.
+	 * Close the database.  Modified blocks are written back to the file.
 	 */
 	public void close() {
-		bf.close();
+		lock.writeLock().lock();
+		try {
+			// stop any online builds
+			Arrays.fill(builds, null);
+			saveIndex(keyIndex, indexFilename(schema.getKeyIndex(), keyIndexSuffix));
+			for (int i = 0; i < indexes.length; i++) {
+				if (indexes[i] != null) {
+					saveIndex(indexes[i], indexFilename(i, indexSuffixes[kindOf(indexes[i])]));
+				}
+			}
+			if (zones != null) {
+				zones.save(zoneFilename(filename));
+			} else {
+				new File(zoneFilename(filename)).delete();
+			}
+			for (int i = 0; i < filters.length(); i++) {
+				if (filters.get(i) != null) {
+					filters.get(i).save(indexFilename(i, filterSuffix));
+				} else {
+					new File(indexFilename(i, filterSuffix)).delete();
+				}
+			}
+			writeMetadata(true);
+			checkpoint();
+			log.close();
+			directory.close();
+			pool.close();
+			bf.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// Save an index for close(): the entries of an in-memory index are
+	// written to the given file, and an on-disk index is closed.  An
+	// index that open() restored and that was never used is unchanged,
+	// unless it was to be rebuilt.
+	private void saveIndex(DBIndex index, String indexFilename) {
+		if (index instanceof LazyIndex) {
+			LazyIndex lazy = (LazyIndex) index;
+			if (!lazy.isLoaded() && !lazy.rebuild) {
+				return;
+			}
+			index = lazy.get();
+		}
+		if (index instanceof OrdIndex) {
+			((OrdIndex) index).save(indexFilename);
+		} else if (index instanceof HashIndex) {
+			((HashIndex) index).save(indexFilename);
+		} else {
+			((DiskIndex) index).close();
+		}
+	}
+	
+	// Write the state of the database, whether the indexes hold record
+	// IDs, the kinds of the indexes and the sizes of the Bloom filters
+	// to the metadata block.  The
+	// block reaches the file at the next checkpoint.
+	private void writeMetadata(boolean closed) {
+		BlockBuffer metaBuffer = pool.pin(metadataBlock);
+		metaBuffer.putInt(closedPosition, closed ? 1 : 0);
+		metaBuffer.putInt(recordIdsPosition, recordIds ? 1 : 0);
+		int kindsPosition = schemaPosition + schema.serializedLength();
+		int filterBitsPosition = kindsPosition + schema.size();
+		for (int i = 0; i < indexes.length; i++) {
+			metaBuffer.buffer.put(kindsPosition + i, (byte) kindOf(indexes[i]));
+			metaBuffer.buffer.put(filterBitsPosition + i, (byte) filterBits[i]);
+		}
+		pool.unpin(metadataBlock, true);
+	}
+	
+	// return the kind of the given index, as recorded in the metadata block
+	private static int kindOf(DBIndex index) {
+		if (index == null) {
+			return noIndex;
+		}
+		if (index instanceof LazyIndex) {
+			return ((LazyIndex) index).kind;
+		}
+		if (index instanceof OrdIndex) {
+			return orderedIndex;
+		}
+		if (index instanceof HashIndex) {
+			return hashIndex;
+		}
+		if (index instanceof BTreeIndex) {
+			return btreeIndex;
+		}
+		return linearHashIndex;
+	}
+	
+	// Write every changed block back to the file, and empty the log.  The
+	// caller must hold the write lock.
+	private void checkpoint() {
+		log.flush(log.endLSN());
+		pool.flush();
+		bf.force();
+		log.truncate();
+	}
+	
+	// take a checkpoint if the log has grown large
+	private void checkpointIfNeeded() {
+		if (log.size() > checkpointLogSize) {
+			checkpoint();
+		}
+	}
+	
+	// Redo the changes in the log, then take a checkpoint.  Blocks that
+	// the log mentions but that were not allocated when the directory
+	// was last written are allocated, and the directory entry of every
+	// block is recomputed.
+	private void recover() {
+		int n = log.replay((type, blockNum, slot, data) -> {
+			while (!directory.isValid(blockNum)) {
+				long b = directory.allocate();
+				if (b > blockNum) {
+					throw new IllegalStateException("Error: log record for block "+blockNum+", which is not a data block");
+				}
+				pool.pinNew(b);
+				pool.unpin(b, true);
+			}
+			BlockBuffer buffer = pool.pin(blockNum);
+			Bitmap recMap = recordMap(buffer);
+			switch (type) {
+			case WriteAheadLog.PAGE:
+				System.arraycopy(data, 0, buffer.buffer.array(), 0, data.length);
+				break;
+			case WriteAheadLog.INSERT:
+			case WriteAheadLog.MODIFY:
+				System.arraycopy(data, 0, buffer.buffer.array(), recordLocation(slot), data.length);
+				recMap.setBit(slot, true);
+				break;
+			case WriteAheadLog.DELETE:
+				recMap.setBit(slot, false);
+				break;
+			default:
+				pool.unpin(blockNum, false);
+				throw new IllegalStateException("Error: unknown log record type "+type);
+			}
+			pool.unpin(blockNum, true);
+		});
+		if (n == 0) {
+			return;
+		}
+		for (int i = 0; i < directory.numBlocks(); i++) {
+			long blockNum = directory.blockNumber(i);
+			BlockBuffer buffer = pool.pin(blockNum);
+			updateDirectory(blockNum, recordMap(buffer));
+			pool.unpin(blockNum, false);
+		}
+		checkpoint();
+	}
+	
+	/**
+	 * Set the number of blocks that scans read ahead, on a background
+	 * thread, of the block they are on.  The window is limited to what
+	 * the buffer pool can prefetch at once (see BufferPool.maxPrefetch).
+	 * A window of 0 turns read-ahead off.
+	 * @param blocks
+	 */
+	public void setReadAheadWindow(int blocks) {
+		if (blocks < 0) {
+			throw new IllegalArgumentException("read-ahead window can't be negative");
+		}
+		readAheadWindow = blocks;
+	}
+	
+	/**
+	 * Set whether indexes are built online.  An online build lets
+	 * inserts, deletes and modifies run while it reads the database, and
+	 * publishes the new index, with their changes applied, when it is
+	 * done.  Until then, lookups use the field's old index, if it has one.
+	 * The default is false, in which case writers wait for index builds.
+	 * If the database is closed during an online build, the index is not
+	 * created, and the create method throws IllegalStateException.
+	 * @param online
+	 */
+	public void setOnlineIndexBuilds(boolean online) {
+		onlineIndexBuilds = online;
+	}
+	
+	/**
+	 * Set how durable an update is when the call that made it returns
+	 * (see Durability).  The default is Durability.BATCH.
+	 * @param durability
+	 */
+	public void setDurability(Durability durability) {
+		this.durability = durability;
+		log.setDurability(durability);
+	}
+	
+	/**
+	 * Make every update made so far durable, whatever the durability
+	 * level.  With Durability.BATCH, this ends a batch.
+	 */
+	public void sync() {
+		log.flush(log.endLSN());
+	}
+	
+	/**
+	 * Return the write-ahead log of this database, for example to check
+	 * how often it was forced.
+	 */
+	public WriteAheadLog getLog() {
+		return log;
+	}
+	
+	/**
+	 * Return the buffer pool used by this database, for example to
+	 * check its hit and miss counts.
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
 	}
 	
 	// compute the layout of records in blocks
@@ -157,6 +616,23 @@ public class HeapDB implements DB, Iterable<Record>{
 		double s = (double)bf.blockSize();  // bytes/block
 		recsPerBlock = (int)Math.floor(((s - 1)*Byte.SIZE)/(Byte.SIZE*b + 1));
 		recMapSize   = (int)Math.floor((double)recsPerBlock/Byte.SIZE);
+		
+		// a slot number is less than the block size
+		slotBits = 32 - Integer.numberOfLeadingZeros(bf.blockSize() - 1);
+		
+		fieldOffsets = new int[schema.size()];
+		for (int i = 1; i < schema.size(); i++) {
+			fieldOffsets[i] = fieldOffsets[i-1] + schema.getType(i-1).getLen();
+		}
+		
+		int n = 0;
+		intFields = new int[schema.size()];
+		for (int i = 0; i < schema.size(); i++) {
+			if (schema.getType(i) instanceof IntType) {
+				intFields[n++] = i;
+			}
+		}
+		intFields = Arrays.copyOf(intFields, n);
 	}
 	
 	// return the byte position within a block where the ith record is stored
@@ -164,6 +640,56 @@ public class HeapDB implements DB, Iterable<Record>{
 		return recMapSize + recSize*recNumber;
 	}
 	
+	// return the record bitmap of the block held in the given buffer
+	private Bitmap recordMap(BlockBuffer buf) {
+		return new Bitmap(buf.buffer.array(), recMapSize);
+	}
+	
+	// return the value to store in an index for the record in the given
+	// slot of the given block
+	private long pointer(long blockNum, int recNum) {
+		return recordIds ? (blockNum << slotBits) | recNum : blockNum;
+	}
+	
+	// return the block number of an index value
+	private long blockOf(long pointer) {
+		return recordIds ? pointer >>> slotBits : pointer;
+	}
+	
+	// return the slot of a record ID
+	private int slotOf(long rid) {
+		return (int)(rid & ((1 << slotBits) - 1));
+	}
+	
+	// Return the slot of the record with the given key in the block
+	// held in buffer, or -1 if there is none.  pointer is the index value
+	// that led to the block; with record IDs only its slot is checked.
+	// The record is deserialized into rec.
+	private int findRecord(BlockBuffer buffer, long pointer, int key, Record rec) {
+		Bitmap recMap = recordMap(buffer);
+		int first = 0;
+		int last = recMap.size() - 1;
+		if (recordIds) {
+			first = last = slotOf(pointer);
+		}
+		for (int recNum = first; recNum <= last; recNum++) {
+			if (recMap.getBit(recNum)) {
+				rec.deserialize(buffer.buffer, recordLocation(recNum));
+				if (rec.getKey() == key) {
+					return recNum;
+				}
+			}
+		}
+		return -1;
+	}
+	
+	// record the occupancy of a block in the directory, given the
+	// block's record bitmap
+	private void updateDirectory(long blockNum, Bitmap recMap) {
+		int numRecords = recMap.countOnes();
+		directory.set(blockNum, numRecords, recMap.size() - numRecords);
+	}
+	
 	/**
 	 * Return the number of records in the database.
 	 * Note: this does a linear search, so is slow.  It would
@@ -181,106 +707,517 @@ public class HeapDB implements DB, Iterable<Record>{
 
 	@Override
 	public boolean insert(Record rec) {
-		// make sure no record with rec's key is already in the database
-		if (lookup(rec.getKey()) != null) {
+		long lsn;
+		lock.writeLock().lock();
+		try {
+			loadIndexes();
+			lsn = insertRecord(rec);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (lsn < 0) {
 			return false;
 		}
+		commit(lsn);
+		return true;
+	}
+	
+	// Insert a record, and return the LSN of its log record, or -1 if a
+	// record with the same key is already in the database.  The caller
+	// must hold the write lock.
+	private long insertRecord(Record rec) {
+		// make sure no record with rec's key is already in the database
+		if (keyIndex.lookup(rec.getKey(), noValues) > 0) {
+			return -1;
+		}
+		
+		// use the block directory to find a valid block with room
+		long blockNum = directory.findBlock(1);
+		if (blockNum < 0) {
+			// no space in valid blocks, so start a new block; an
+			// all-zero block has an empty record bitmap
+			blockNum = directory.allocate();
+			pool.pinNew(blockNum);
+			pool.unpin(blockNum, true);
+		}
+		
+		BlockBuffer buffer = pool.pin(blockNum);
+		Bitmap recMap = recordMap(buffer);
+		int recNum = recMap.firstZero();
+		if (recNum < 0) {
+			pool.unpin(blockNum, false);
+			throw new IllegalStateException("Error: free-space map shows room in full block "+blockNum);
+		}
 		
-		// iterate over valid blocks and see if there is space
-		bf.read(bitmapBlock, blockmapBuffer);      // read the bitmap block
-		int n = blockMap.size();
-		for (int blockNum = bitmapBlock+1; blockNum < n; blockNum++) {
-			if (blockMap.getBit(blockNum)) {
-				// block i is valid, so see if it has room for a new record
-				bf.read(blockNum, buffer);
-				int recNum = recMap.firstZero();
-				if (recNum >= 0) {
-					// write record to buffer, set bit in bit map, write to file
-					int loc = recordLocation(recNum);
-					rec.serialize(buffer.buffer, loc);
+		// write record to buffer, set bit in bit map, and log the change;
+		// the block stays pinned until it has the LSN, so it can't be
+		// written back before its log record
+		int loc = recordLocation(recNum);
+		rec.serialize(buffer.buffer, loc);
+		recMap.setBit(recNum, true);
+		long lsn = log.append(WriteAheadLog.INSERT, blockNum, recNum, buffer.buffer.array(), loc, recSize);
+		pool.setPageLSN(blockNum, lsn);
+		updateDirectory(blockNum, recMap);
+		updateSummaries(blockNum, buffer, null, loc);
+		pool.unpin(blockNum, true);
+		
+		// index maintenance
+		long ptr = pointer(blockNum, recNum);
+		keyIndex.insert(rec.getKey(), ptr);
+		for(int i = 0; i < schema.size(); i++){
+			if(isIndexed(i)){
+				IntField f  = (IntField) rec.get(i);
+				indexInsert(i, f.getValue(),ptr);
+			}
+		}
+		checkpointIfNeeded();
+		return lsn;
+	}
+	
+	// Update the Bloom filters and the zone map after a change to the
+	// given block, which is pinned: removed is the record that was deleted
+	// or overwritten, or null, and the record at position added is new,
+	// unless added is -1.  The caller must hold the write lock.
+	private void updateSummaries(long blockNum, BlockBuffer buffer, Record removed, int added) {
+		int i = directory.indexOf(blockNum);
+		if (added >= 0) {
+			// a filter can't forget values, so only new ones change it
+			for (int f : intFields) {
+				BloomFilters fieldFilters = filters.get(f);
+				if (fieldFilters != null) {
+					fieldFilters.add(i, buffer.getInt(added + fieldOffsets[f]));
+				}
+			}
+		}
+		if (zones == null) {
+			return;
+		}
+		if (removed != null) {
+			for (int f : intFields) {
+				if (zones.isBound(i, f, ((IntField)removed.get(f)).getValue())) {
+					// the summary may narrow
+					summarize(zones, i, buffer);
+					return;
+				}
+			}
+		}
+		if (added >= 0) {
+			for (int f : intFields) {
+				zones.include(i, f, buffer.getInt(added + fieldOffsets[f]));
+			}
+		}
+	}
+	
+	// set the summary of data block i, held in buffer, in the given zone map
+	private void summarize(ZoneMap zones, int i, BlockBuffer buffer) {
+		zones.clear(i);
+		Bitmap recMap = recordMap(buffer);
+		for (int recNum = 0; recNum < recMap.size(); recNum++) {
+			if (recMap.getBit(recNum)) {
+				int loc = recordLocation(recNum);
+				for (int f : intFields) {
+					zones.include(i, f, buffer.getInt(loc + fieldOffsets[f]));
+				}
+			}
+		}
+	}
+	
+	// Return the zone map, building it by a scan if this is its first use
+	// since open().  Readers may build it at the same time under the read
+	// lock, so building is synchronized; writers are held off.
+	private ZoneMap zoneMap() {
+		ZoneMap result = zones;
+		if (result == null) {
+			synchronized (zoneMapBuild) {
+				if (zones == null) {
+					ZoneMap built = new ZoneMap(schema.size());
+					ReadAhead readAhead = new ReadAhead();
+					for (long blockNum = directory.nextNonEmpty(0); blockNum >= 0; blockNum = directory.nextNonEmpty(blockNum+1)) {
+						readAhead.advance(blockNum);
+						BlockBuffer buffer = pool.pin(blockNum);
+						summarize(built, directory.indexOf(blockNum), buffer);
+						pool.unpin(blockNum, false);
+					}
+					zones = built;
+				}
+				result = zones;
+			}
+		}
+		return result;
+	}
+	
+	// Return the Bloom filters of the given field, building them by a scan
+	// if this is their first use since open(), or null if the field has
+	// none.  Readers may call this at the same time under the read lock,
+	// so a build is synchronized, for each field; writers are held off.
+	private BloomFilters filtersFor(int fieldNum) {
+		BloomFilters result = filters.get(fieldNum);
+		if (result == null && filterBits[fieldNum] > 0) {
+			synchronized (filterBuilds[fieldNum]) {
+				if (filters.get(fieldNum) == null) {
+					filters.set(fieldNum, buildFilters(fieldNum, filterBits[fieldNum]));
+				}
+				result = filters.get(fieldNum);
+			}
+		}
+		return result;
+	}
+	
+	// return n objects to lock on
+	private static Object[] newLocks(int n) {
+		Object[] locks = new Object[n];
+		for (int i = 0; i < n; i++) {
+			locks[i] = new Object();
+		}
+		return locks;
+	}
+	
+	// return new Bloom filters holding the values of the given field
+	private BloomFilters buildFilters(int fieldNum, int bitsPerRecord) {
+		BloomFilters built = new BloomFilters(recsPerBlock, bitsPerRecord);
+		ReadAhead readAhead = new ReadAhead();
+		for (long blockNum = directory.nextNonEmpty(0); blockNum >= 0; blockNum = directory.nextNonEmpty(blockNum+1)) {
+			readAhead.advance(blockNum);
+			int i = directory.indexOf(blockNum);
+			BlockBuffer buffer = pool.pin(blockNum);
+			Bitmap recMap = recordMap(buffer);
+			for (int recNum = 0; recNum < recMap.size(); recNum++) {
+				if (recMap.getBit(recNum)) {
+					built.add(i, buffer.getInt(recordLocation(recNum) + fieldOffsets[fieldNum]));
+				}
+			}
+			pool.unpin(blockNum, false);
+		}
+		return built;
+	}
+	
+	// Wait, if the durability level asks for it, until the log record with
+	// the given LSN is on disk.  This is done after the write lock is
+	// released, so that the log is forced once for many writers.
+	private void commit(long lsn) {
+		if (durability == Durability.OPERATION) {
+			log.flush(lsn);
+		}
+	}
+	
+	/**
+	 * Load many records at once, checking for duplicate keys.  See
+	 * bulkLoad(Iterator, boolean).
+	 * @param recs
+	 * @return the number of records loaded
+	 */
+	public int bulkLoad(Iterator<Record> recs) {
+		return bulkLoad(recs, true);
+	}
+	
+	/**
+	 * Load many records at once.  Records are packed in order into new
+	 * blocks, so each block and its directory entry is written once, and
+	 * the indexes are built
+	 * in bulk from the loaded (key, block) pairs at the end.
+	 * 
+	 * If checkDuplicates is true, the keys are checked a batch at a
+	 * time, and a record is skipped if its key is already in the
+	 * database or appears earlier in the input.  If checkDuplicates is
+	 * false, the caller guarantees that the keys are unique.
+	 * @param recs
+	 * @param checkDuplicates
+	 * @return the number of records loaded
+	 */
+	public int bulkLoad(Iterator<Record> recs, boolean checkDuplicates) {
+		int loaded = 0;
+		lock.writeLock().lock();
+		try {
+			loadIndexes();
+			// records are serialized into the staging buffer a batch at a time
+			ByteBuffer staging = ByteBuffer.allocate(bulkBatchSize * recSize);
+			int[] batchKeys = new int[bulkBatchSize];
+			long[] batchBlocks = new long[bulkBatchSize];
+		
+			// (key, block) pairs for each user index, built at the end
+			KeyBlockPairs[] entries = new KeyBlockPairs[schema.size()];
+			for (int i = 0; i < schema.size(); i++) {
+				if (isIndexed(i)) {
+					entries[i] = new KeyBlockPairs();
+				}
+			}
+		
+			long blockNum = -1;        // block being filled, or -1 if none
+			BlockBuffer buffer = null;
+			Bitmap recMap = null;
+			int recNum = 0;
+			while (recs.hasNext()) {
+				// stage a batch of records
+				int n = 0;
+				while (n < bulkBatchSize && recs.hasNext()) {
+					Record rec = recs.next();
+					batchKeys[n] = rec.getKey();
+					rec.serialize(staging, n * recSize);
+					n++;
+				}
+				boolean[] keep = checkDuplicates ? newKeys(batchKeys, n) : null;
+			
+				// pack the batch into blocks
+				int numPlaced = 0;
+				for (int i = 0; i < n; i++) {
+					if (keep != null && !keep[i]) {
+						continue;
+					}
+					if (blockNum < 0) {
+						// start a new block
+						blockNum = directory.allocate();
+						buffer = pool.pinNew(blockNum);
+						recMap = recordMap(buffer);
+						recNum = 0;
+					}
+				
+					System.arraycopy(staging.array(), i * recSize, buffer.buffer.array(), recordLocation(recNum), recSize);
 					recMap.setBit(recNum, true);
-					bf.write(blockNum, buffer);
-					
-					// index maintenance
-					// YOUR CODE HERE
-
-					//done
-					for(int i = 0; i < schema.size(); i++){
-						if(indexes[i] != null){
-							IntField f  = (IntField) rec.get(i);
-							indexes[i].insert(f.getValue(),blockNum);
+					updateSummaries(blockNum, buffer, null, recordLocation(recNum));
+					long ptr = pointer(blockNum, recNum);
+					recNum++;
+					for (int f = 0; f < schema.size(); f++) {
+						if (entries[f] != null) {
+							entries[f].add(staging.getInt(i * recSize + fieldOffsets[f]), ptr);
 						}
 					}
-
-					//search through indexes to find a null value
-					//	if indexes has non null entry:
-					//		add to index (value if search key from rec, blockNum)
-
-					return true;
+					batchKeys[numPlaced] = batchKeys[i];
+					batchBlocks[numPlaced] = ptr;
+					numPlaced++;
+				
+					if (recNum == recMap.size()) {
+						// block is full; log it as a whole
+						logPage(blockNum, buffer);
+						updateDirectory(blockNum, recMap);
+						pool.unpin(blockNum, true);
+						blockNum = -1;
+					}
+				}
+			
+				// the key index is updated every batch, so that later batches
+				// can be checked against it
+				keyIndex.insertAll(batchKeys, batchBlocks, numPlaced);
+				loaded += numPlaced;
+			}
+			if (blockNum >= 0) {
+				logPage(blockNum, buffer);
+				updateDirectory(blockNum, recMap);
+				pool.unpin(blockNum, true);
+			}
+		
+			// build the user indexes
+			for (int f = 0; f < schema.size(); f++) {
+				if (entries[f] != null && indexes[f] != null) {
+					indexes[f].insertAll(entries[f].keys, entries[f].blockNums, entries[f].size);
+				}
+				if (entries[f] != null && builds[f] != null) {
+					for (int i = 0; i < entries[f].size; i++) {
+						builds[f].capture(entries[f].keys[i], entries[f].blockNums[i], false);
+					}
 				}
 			}
+			checkpointIfNeeded();
+		} finally {
+			lock.writeLock().unlock();
 		}
-				
-		// no space in valid blocks, so start a new block
-		int blockNum = blockMap.firstZero();
-		if (blockNum < 0) {
-			// no room left in the database
-			throw new IllegalStateException("Error: insert failed because database is full");
+		commit(log.endLSN());
+		return loaded;
+	}
+	
+	// log the whole of a pinned block that bulkLoad filled
+	private void logPage(long blockNum, BlockBuffer buffer) {
+		long lsn = log.append(WriteAheadLog.PAGE, blockNum, 0, buffer.buffer.array(), 0, bf.blockSize());
+		pool.setPageLSN(blockNum, lsn);
+	}
+	
+	// Check a batch of n keys for duplicates.  Return an array in which
+	// element i is true if keys[i] is not in the database and does not
+	// occur in keys[0..i-1].
+	private boolean[] newKeys(int[] keys, int n) {
+		// sort the positions by key so that equal keys are adjacent,
+		// in input order
+		long[] sorted = OrdIndex.sortedByKey(keys, n);
+		
+		boolean[] keep = new boolean[n];
+		for (int j = 0; j < n; j++) {
+			int key = OrdIndex.sortKey(sorted[j]);
+			boolean first = (j == 0 || OrdIndex.sortKey(sorted[j-1]) != key);
+			if (first && keyIndex.lookup(key, noValues) == 0) {
+				keep[OrdIndex.sortPosition(sorted[j])] = true;
+			}
 		}
+		return keep;
+	}
+	
+	// A growable list of (key, block number) pairs, kept in primitive
+	// arrays so that they can be handed to DBIndex.insertAll().
+	private static class KeyBlockPairs {
+		int[] keys = new int[1024];
+		long[] blockNums = new long[1024];
+		int size = 0;
 		
-		// initialize a new block and retry the insert
-		recMap.clear();
-		bf.write(blockNum, buffer);
-		blockMap.setBit(blockNum, true);
-		bf.write(bitmapBlock, blockmapBuffer);
-		return insert(rec);
+		void add(int key, long blockNum) {
+			if (size == keys.length) {
+				keys = Arrays.copyOf(keys, 2 * size);
+				blockNums = Arrays.copyOf(blockNums, 2 * size);
+			}
+			keys[size] = key;
+			blockNums[size] = blockNum;
+			size++;
+		}
+	}
+	
+	// return true if the given field has an index, or one being built
+	private boolean isIndexed(int fieldNum) {
+		return indexes[fieldNum] != null || builds[fieldNum] != null;
+	}
+	
+	// Add an entry to the index on the given field, and to the index
+	// being built for it.  The caller must hold the write lock.
+	private void indexInsert(int fieldNum, int key, long ptr) {
+		if (indexes[fieldNum] != null) {
+			indexes[fieldNum].insert(key, ptr);
+		}
+		if (builds[fieldNum] != null) {
+			builds[fieldNum].capture(key, ptr, false);
+		}
+	}
+	
+	// Delete an entry from the index on the given field, and from the
+	// index being built for it.  The caller must hold the write lock.
+	private void indexDelete(int fieldNum, int key, long ptr) {
+		if (indexes[fieldNum] != null) {
+			indexes[fieldNum].delete(key, ptr);
+		}
+		if (builds[fieldNum] != null) {
+			builds[fieldNum].capture(key, ptr, true);
+		}
 	}
 
 	@Override
 	public boolean delete(int key) {
+		long lsn;
+		lock.writeLock().lock();
+		try {
+			loadIndexes();
+			lsn = deleteRecord(key);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (lsn < 0) {
+			return false;
+		}
+		commit(lsn);
+		return true;
+	}
+	
+	// Delete the record with the given key, and return the LSN of the log
+	// record, or -1 if there is no such record.  The record is found
+	// through the primary key index, and the index entries removed are
+	// the deleted record's own (value, pointer) pairs.  The caller must
+	// hold the write lock.
+	private long deleteRecord(int key) {
 		Record rec = schema.blankRecord();
+		int n = lookupPointers(keyIndex, key);
+		long[] pointers = lookupBuffer.get();
+		for (int j = 0; j < n; j++) {
+			long ptr = pointers[j];
+			long blockNum = blockOf(ptr);
+			BlockBuffer buffer = pool.pin(blockNum);
+			int recNum = findRecord(buffer, ptr, key, rec);
+			if (recNum < 0) {
+				pool.unpin(blockNum, false);
+				continue;
+			}
+			
+			// found it; to delete the record, simply zero its bit in the
+			// record bit map, and log the change
+			Bitmap recMap = recordMap(buffer);
+			recMap.setBit(recNum, false);
+			long lsn = log.append(WriteAheadLog.DELETE, blockNum, recNum, buffer.buffer.array(), 0, 0);
+			pool.setPageLSN(blockNum, lsn);
+			updateDirectory(blockNum, recMap);
+			updateSummaries(blockNum, buffer, rec, -1);
+			pool.unpin(blockNum, true);
+			
+			// index maintenance
+			keyIndex.delete(key, ptr);
+			for (int i = 0; i < schema.size(); i++) {
+				if (isIndexed(i)) {
+					indexDelete(i, ((IntField)rec.get(i)).getValue(), ptr);
+				}
+			}
+			checkpointIfNeeded();
+			return lsn;
+		}
+		return -1;
+	}
 
-		// search blocks sequentially for the key
-		bf.read(bitmapBlock, blockmapBuffer);      // read the bitmap block
-		for (int blockNum = bitmapBlock+1; blockNum < blockMap.size(); blockNum++) {
-			if (blockMap.getBit(blockNum)) {
-				bf.read(blockNum, buffer);
-				for (int recNum = 0; recNum < recMap.size(); recNum++) {
-					if (recMap.getBit(recNum)) {
-						// record j is present; check its key value
-						int loc = recordLocation(recNum);
-						rec.deserialize(buffer.buffer, loc);
-						if (key == rec.getKey()) {
-							// found it; to delete the record, simply zero the jth
-							// bit in the record bit map
-							recMap.setBit(recNum, false);
-							bf.write(blockNum, buffer);
-							
-							// index maintenance
-							// YOUR CODE HERE
-
-							for(int i = 0; i < schema.size(); i++){
-								if(indexes[i] != null){
-									List<Integer> blockNums = indexes[i].lookup(key);
-
-									for(Integer b:blockNums){
-										indexes[i].delete(key,b);
-									}
-								}
-							}
-
-							return true;
-						}
+	/**
+	 * Modify the record with the key of the given record, in place.  Only
+	 * the index entries of fields whose values change are updated, so a
+	 * modify that changes no indexed field does no index work.
+	 */
+	@Override
+	public boolean modify(Record rec) {
+		long lsn;
+		lock.writeLock().lock();
+		try {
+			loadIndexes();
+			lsn = modifyRecord(rec);
+		} finally {
+			lock.writeLock().unlock();
+		}
+		if (lsn < 0) {
+			return false;
+		}
+		commit(lsn);
+		return true;
+	}
+	
+	// Overwrite the record with rec's key with rec, and return the LSN of
+	// the log record, or -1 if there is no such record.  The caller must
+	// hold the write lock.
+	private long modifyRecord(Record rec) {
+		int key = rec.getKey();
+		Record old = schema.blankRecord();
+		int n = lookupPointers(keyIndex, key);
+		long[] pointers = lookupBuffer.get();
+		for (int j = 0; j < n; j++) {
+			long ptr = pointers[j];
+			long blockNum = blockOf(ptr);
+			BlockBuffer buffer = pool.pin(blockNum);
+			int recNum = findRecord(buffer, ptr, key, old);
+			if (recNum < 0) {
+				pool.unpin(blockNum, false);
+				continue;
+			}
+			
+			// overwrite the record in its slot; the slot stays in use, so
+			// the directory entry doesn't change
+			int loc = recordLocation(recNum);
+			rec.serialize(buffer.buffer, loc);
+			long lsn = log.append(WriteAheadLog.MODIFY, blockNum, recNum, buffer.buffer.array(), loc, recSize);
+			pool.setPageLSN(blockNum, lsn);
+			updateSummaries(blockNum, buffer, old, loc);
+			pool.unpin(blockNum, true);
+			
+			// the record stays in the same slot, so only the entries of
+			// changed fields move
+			for (int i = 0; i < schema.size(); i++) {
+				if (isIndexed(i)) {
+					int oldValue = ((IntField)old.get(i)).getValue();
+					int newValue = ((IntField)rec.get(i)).getValue();
+					if (oldValue != newValue) {
+						indexDelete(i, oldValue, ptr);
+						indexInsert(i, newValue, ptr);
 					}
 				}
 			}
+			checkpointIfNeeded();
+			return lsn;
 		}
-		return false;
-	}
-
-	@Override
-	public boolean modify(Record rec) {
-		throw new UnsupportedOperationException();
+		return -1;
 	}
 	
 	// Return the record in the database having the
@@ -296,61 +1233,294 @@ public class HeapDB implements DB, Iterable<Record>{
 
 	@Override
 	public List<Record> lookup(String fname, int key) {
-		int fieldNum = schema.getFieldIndex(fname);
-		if (fieldNum < 0) {
-			throw new IllegalArgumentException("Field '"+fname+"' not in schema.");
-		}
+		lock.readLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("Field '"+fname+"' not in schema.");
+			}
 		
-		List<Record> result = new ArrayList<Record>();
+			List<Record> result = new ArrayList<Record>();
 		
-		// YOUR CODE HERE
+			// YOUR CODE HERE
 		
-		// You should use an index for the lookup if an index is
-		// available on the given field.  If not perform a linear
-		// search over the records in the DB.  The iterator makes
-		// it easy to perform a linear search, using code like
-		// this:
-		// for (Record rec : this) {
-		//    ...
-		// }
+			// You should use an index for the lookup if an index is
+			// available on the given field.  If not perform a linear
+			// search over the records in the DB.  The iterator makes
+			// it easy to perform a linear search, using code like
+			// this:
+			// for (Record rec : this) {
+			//    ...
+			// }
 
-		//find field num
-		// 	check if indexes[field] num type is equal to ordered Index
-		//*if orderedIndex is available: use that to return data.
+			//find field num
+			// 	check if indexes[field] num type is equal to ordered Index
+			//*if orderedIndex is available: use that to return data.
 
-		DBIndex index = indexes[fieldNum];
-		if(index != null) {
-			List<Integer> blockNumbers = index.lookup(key);
-			for(Integer blockNum:blockNumbers){
-				List<Record> records = lookupInBlock(fieldNum,key,blockNum);
-				for(Record rec:records) {
-					result.add(rec);
+			DBIndex index = indexFor(fieldNum);
+			if(index != null) {
+				int n = lookupPointers(index, key);
+				long[] pointers = lookupBuffer.get();
+				for (int j = 0; j < n; j++) {
+					long ptr = pointers[j];
+					if (recordIds) {
+						// a record ID leads straight to the record's slot
+						Record rec = lookupSlot(fieldNum, key, ptr);
+						if (rec != null) {
+							result.add(rec);
+						}
+						continue;
+					}
+					List<Record> records = lookupInBlock(fieldNum,key,ptr);
+					for(Record rec:records) {
+						result.add(rec);
+					}
 				}
+			}else{
+				scanRecords(fieldNum, key, key, val -> val == key, result);
+			}
+
+			//if not: iterate through everything in indexes[field num] in a linear search and return all values
+
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	/**
+	 * Return all records in which the given integer field has a value
+	 * between lo and hi, inclusive.  If the field has an ordered index,
+	 * the index gives the records in the range; their block numbers are
+	 * sorted, so that each block is read once, and the records come back
+	 * in block order.  Otherwise the whole database is scanned.
+	 */
+	@Override
+	public List<Record> lookupRange(String fname, int lo, int hi) {
+		lock.readLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("Field '"+fname+"' not in schema.");
+			}
+			
+			List<Record> result = new ArrayList<Record>();
+			DBIndex index = indexFor(fieldNum);
+			if (!(index instanceof OrderedIndex)) {
+				scanRecords(fieldNum, lo, hi, val -> lo <= val && val <= hi, result);
+				return result;
 			}
-		}else{
-			for (Record rec : this) {
-				IntField f  = (IntField) rec.get(fieldNum);
-				if (key == f.getValue())
-				{
-					result.add(rec);
+			
+			// collect the index values in the range, and sort them by block
+			long[] pointers = new long[16];
+			int n = 0;
+			Iterator<Long> it = ((OrderedIndex) index).rangeIterator(lo, hi);
+			while (it.hasNext()) {
+				if (n == pointers.length) {
+					pointers = Arrays.copyOf(pointers, 2 * n);
 				}
+				pointers[n++] = it.next();
 			}
+			Arrays.sort(pointers, 0, n);
+			
+			readRecords(pointers, n, fieldNum, val -> lo <= val && val <= hi, result);
+			return result;
+		} finally {
+			lock.readLock().unlock();
 		}
-
-		//if not: iterate through everything in indexes[field num] in a linear search and return all values
-
+	}
+	
+	/**
+	 * Return all records in which the given integer field has one of the
+	 * given search key values.  This is quicker than calling
+	 * lookup(String, int) for each key: the records for all the keys are
+	 * found in the index first, and then each block holding any of them is
+	 * read once.  The records come back in block order.
+	 */
+	public List<Record> lookupAll(String fname, int[] keys) {
+		lock.readLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("Field '"+fname+"' not in schema.");
+			}
+			
+			// the distinct keys, sorted so that they can be binary searched
+			int[] wanted = keys.clone();
+			Arrays.sort(wanted);
+			int numWanted = 0;
+			for (int i = 0; i < wanted.length; i++) {
+				if (i == 0 || wanted[i] != wanted[i-1]) {
+					wanted[numWanted++] = wanted[i];
+				}
+			}
+			final int[] distinct = Arrays.copyOf(wanted, numWanted);
+			IntPredicate match = val -> Arrays.binarySearch(distinct, val) >= 0;
+			
+			List<Record> result = new ArrayList<Record>();
+			DBIndex index = indexFor(fieldNum);
+			if (index == null) {
+				if (distinct.length > 0) {
+					scanRecords(fieldNum, distinct[0], distinct[distinct.length-1], match, result);
+				}
+				return result;
+			}
+			
+			// collect the index values of all the keys, and sort them by block
+			long[] pointers = new long[Math.max(16, distinct.length)];
+			int n = 0;
+			for (int key : distinct) {
+				int m = lookupPointers(index, key);
+				if (n + m > pointers.length) {
+					pointers = Arrays.copyOf(pointers, Math.max(2 * pointers.length, n + m));
+				}
+				System.arraycopy(lookupBuffer.get(), 0, pointers, n, m);
+				n += m;
+			}
+			Arrays.sort(pointers, 0, n);
+			
+			readRecords(pointers, n, fieldNum, match, result);
+			return result;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+	
+	// Add to result the records, among those the first n index values in
+	// pointers lead to, whose integer field fieldNum satisfies match.  The
+	// index values must be sorted, so that each block is pinned only once
+	// and copies of a record ID are next to each other.
+	private void readRecords(long[] pointers, int n, int fieldNum, IntPredicate match, List<Record> result) {
+		for (int i = 0; i < n; ) {
+			long blockNum = blockOf(pointers[i]);
+			BlockBuffer buffer = pool.pin(blockNum);
+			Bitmap recMap = recordMap(buffer);
+			if (recordIds) {
+				// check the slot of each record ID in this block, once
+				for ( ; i < n && blockOf(pointers[i]) == blockNum; i++) {
+					if (i == 0 || pointers[i] != pointers[i-1]) {
+						addIfMatch(buffer, recMap, slotOf(pointers[i]), fieldNum, match, result);
+					}
+				}
+			} else {
+				// check every record in the block
+				for (int recNum = 0; recNum < recMap.size(); recNum++) {
+					addIfMatch(buffer, recMap, recNum, fieldNum, match, result);
+				}
+				while (i < n && pointers[i] == blockNum) {
+					i++;
+				}
+			}
+			pool.unpin(blockNum, false);
+		}
+	}
+	
+	// Add to result every record in the database whose integer field
+	// fieldNum satisfies match.  Only values from lo to hi can match, so
+	// blocks whose zone map summary shows no such values are not read,
+	// and when lo == hi, neither are blocks whose Bloom filter (if the
+	// field has them) doesn't contain the value.  Blocks without records
+	// have empty summaries, so the directory isn't needed to skip them.
+	private void scanRecords(int fieldNum, int lo, int hi, IntPredicate match, List<Record> result) {
+		ZoneMap zones = zoneMap();
+		BloomFilters filters = (lo == hi) ? filtersFor(fieldNum) : null;
+		int numBlocks = directory.numBlocks();
+		// pruning often leaves few blocks, so the array grows as needed
+		long[] blocks = new long[16];
+		int n = 0;
+		for (int i = 0; i < numBlocks; i++) {
+			if (zones.mayContain(i, fieldNum, lo, hi) && (filters == null || filters.mayContain(i, lo))) {
+				if (n == blocks.length) {
+					blocks = Arrays.copyOf(blocks, 2 * n);
+				}
+				blocks[n++] = directory.blockNumber(i);
+			}
+		}
+		
+		ReadAhead readAhead = new ReadAhead(blocks, n);
+		for (int j = 0; j < n; j++) {
+			long blockNum = blocks[j];
+			readAhead.advance(blockNum);
+			BlockBuffer buffer = pool.pin(blockNum);
+			Bitmap recMap = recordMap(buffer);
+			for (int recNum = 0; recNum < recMap.size(); recNum++) {
+				addIfMatch(buffer, recMap, recNum, fieldNum, match, result);
+			}
+			pool.unpin(blockNum, false);
+		}
+	}
+	
+	// Add the record in the given slot of the block held in buffer to
+	// result, if the slot is in use and the record's integer field
+	// fieldNum satisfies match.
+	private void addIfMatch(BlockBuffer buffer, Bitmap recMap, int recNum, int fieldNum, IntPredicate match, List<Record> result) {
+		if (recMap.getBit(recNum)) {
+			int loc = recordLocation(recNum);
+			if (match.test(buffer.getInt(loc + fieldOffsets[fieldNum]))) {
+				Record rec = schema.blankRecord();
+				rec.deserialize(buffer.buffer, loc);
+				result.add(rec);
+			}
+		}
+	}
+	
+	// Look up key in the given index, leaving the values at the start of
+	// the calling thread's lookup buffer, and return the number of values.
+	// The buffer is grown if they don't fit.
+	private int lookupPointers(DBIndex index, int key) {
+		long[] buffer = lookupBuffer.get();
+		int n = index.lookup(key, buffer);
+		if (n > buffer.length) {
+			buffer = new long[Integer.highestOneBit(n) << 1];
+			lookupBuffer.set(buffer);
+			index.lookup(key, buffer);
+		}
+		return n;
+	}
+	
+	// Return the index to use for lookups on the given field, or null
+	// if there is none.  The primary key index is used for the key field
+	// when the user has not created an index on it.
+	private DBIndex indexFor(int fieldNum) {
+		DBIndex index = indexes[fieldNum];
+		if (index == null && fieldNum == schema.getKeyIndex()) {
+			index = keyIndex;
+		}
+		if (index instanceof LazyIndex) {
+			index = ((LazyIndex) index).get();
+		}
+		return index;
+	}
+	
+	// Return the record with the given record ID if it is present and
+	// its integer field fieldNum has value key, or else return null.
+	// Only the one slot is read.
+	private Record lookupSlot(int fieldNum, int key, long rid) {
+		long blockNum = blockOf(rid);
+		int recNum = slotOf(rid);
+		Record result = null;
+		BlockBuffer buffer = pool.pin(blockNum);
+		if (recordMap(buffer).getBit(recNum)) {
+			int loc = recordLocation(recNum);
+			if (buffer.getInt(loc + fieldOffsets[fieldNum]) == key) {
+				result = schema.blankRecord();
+				result.deserialize(buffer.buffer, loc);
+			}
+		}
+		pool.unpin(blockNum, false);
 		return result;
 	}
 	
 	// Perform a linear search in the block with the given blockNum
 	// for records in which the given integer field has value key
-	private List<Record> lookupInBlock(int fieldNum, int key, int blockNum) {
+	private List<Record> lookupInBlock(int fieldNum, int key, long blockNum) {
 		List<Record> result = new ArrayList<Record>();
 		
 		// each record in the block will be deserialized into this record
 		Record rec = schema.blankRecord();
 		
-		bf.read(blockNum, buffer);
+		BlockBuffer buffer = pool.pin(blockNum);
+		Bitmap recMap = recordMap(buffer);
 		for (int recNum = 0; recNum < recMap.size(); recNum++) {
 			if (recMap.getBit(recNum)) {
 				// found a record
@@ -365,6 +1535,7 @@ public class HeapDB implements DB, Iterable<Record>{
 				}
 			}
 		}
+		pool.unpin(blockNum, false);
 		return result;
 	}
 
@@ -372,18 +1543,7 @@ public class HeapDB implements DB, Iterable<Record>{
 	 * Create an ordered index for the given integer field.
 	 */
 	public void createOrderedIndex(String fname) {
-		int fieldNum = schema.getFieldIndex(fname);
-		if (fieldNum < 0) {
-			throw new IllegalArgumentException("no such field: "+fname);
-		}
-		FieldType ft = schema.getType(fieldNum);
-		if (!(ft instanceof IntType)) {
-			throw new IllegalArgumentException("field "+fname+" is not of integer type");
-		}
-		
-		DBIndex index = new OrdIndex();
-		initializeIndex(fieldNum, index);
-		indexes[fieldNum] = index;
+		createIndex(fname, orderedIndex);
 	}
 
 	/**
@@ -397,18 +1557,7 @@ public class HeapDB implements DB, Iterable<Record>{
 	 * Create a hash index for the given integer field.
 	 */
 	public void createHashIndex(String fname) {
-		int fieldNum = schema.getFieldIndex(fname);
-		if (fieldNum < 0) {
-			throw new IllegalArgumentException("no such field: "+fname);
-		}
-		FieldType ft = schema.getType(fieldNum);
-		if (!(ft instanceof IntType)) {
-			throw new IllegalArgumentException("field "+fname+" is not of integer type");
-		}
-		
-		DBIndex index = new HashIndex();
-		initializeIndex(fieldNum, index);
-		indexes[fieldNum] = index;
+		createIndex(fname, hashIndex);
 	}
 	
 	/**
@@ -418,31 +1567,464 @@ public class HeapDB implements DB, Iterable<Record>{
 		createHashIndex(schema.getKey());
 	}
 	
-	// initialize the given index
+	/**
+	 * Create a B+tree index for the given integer field.  The index is
+	 * kept on disk, in a file next to the database file, so it need not
+	 * fit in memory.
+	 */
+	public void createBTreeIndex(String fname) {
+		createIndex(fname, btreeIndex);
+	}
+	
+	/**
+	 * Create a B+tree index for the primary key field.
+	 */
+	public void createBTreeIndex() {
+		createBTreeIndex(schema.getKey());
+	}
+	
+	/**
+	 * Create a linear hash index for the given integer field.  The index
+	 * is kept on disk, in a file next to the database file, so it need
+	 * not fit in memory.
+	 */
+	public void createLinearHashIndex(String fname) {
+		createIndex(fname, linearHashIndex);
+	}
+	
+	/**
+	 * Create a linear hash index for the primary key field.
+	 */
+	public void createLinearHashIndex() {
+		createLinearHashIndex(schema.getKey());
+	}
+	
+	// Create an index of the given kind for the given integer field,
+	// replacing any index it has.  The new index is recorded in the
+	// metadata block right away, so that it is restored after a crash.
+	private void createIndex(String fname, int kind) {
+		IndexBuild build;
+		lock.writeLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("no such field: "+fname);
+			}
+			FieldType ft = schema.getType(fieldNum);
+			if (!(ft instanceof IntType)) {
+				throw new IllegalArgumentException("field "+fname+" is not of integer type");
+			}
+			checkNoBuild(fieldNum);
+		
+			if (!onlineIndexBuilds) {
+				// the old index may be using the file
+				dropIndex(fieldNum);
+				DBIndex index = newIndex(kind, fieldNum);
+				initializeIndex(fieldNum, index);
+				indexes[fieldNum] = index;
+				writeMetadata(false);
+				checkpoint();
+				return;
+			}
+			
+			// an old on-disk index of the same kind is using the file, so
+			// it can't be kept during the build
+			if (kindOf(indexes[fieldNum]) == kind && (kind == btreeIndex || kind == linearHashIndex)) {
+				dropIndex(fieldNum);
+			}
+			build = new IndexBuild(fieldNum, newIndex(kind, fieldNum));
+			builds[fieldNum] = build;
+		} finally {
+			lock.writeLock().unlock();
+		}
+		buildOnline(build);
+	}
+	
+	// Build the index of an online build, and publish it.  Writers are
+	// held off only while a run of blocks is read, and while the last of
+	// the changes they made are applied.  If the database is closed
+	// during the build, the index is not published, and an
+	// IllegalStateException is thrown.
+	private void buildOnline(IndexBuild build) {
+		int fieldNum = build.fieldNum;
+		DBIndex index = build.index;
+		KeyBlockPairs entries = extractEntries(fieldNum, build.numBlocks, build);
+		index.insertAll(entries.keys, entries.blockNums, entries.size);
+		
+		// apply the changes made during the scan, letting writers go on
+		KeyBlockPairs changes;
+		lock.readLock().lock();
+		try {
+			changes = build.takeChanges();
+		} finally {
+			lock.readLock().unlock();
+		}
+		build.apply(changes);
+		
+		lock.writeLock().lock();
+		try {
+			if (builds[fieldNum] != build) {
+				// the database was closed
+				if (index instanceof DiskIndex) {
+					((DiskIndex) index).drop();
+				}
+				throw new IllegalStateException("the database was closed while an index was being built for field "+schema.getName(fieldNum));
+			}
+			build.apply(build.takeChanges());
+			builds[fieldNum] = null;
+			dropIndex(fieldNum);
+			indexes[fieldNum] = index;
+			writeMetadata(false);
+			checkpoint();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	// throw an exception if an index is being built for the given field
+	private void checkNoBuild(int fieldNum) {
+		if (builds[fieldNum] != null) {
+			throw new IllegalStateException("an index is being built for field "+schema.getName(fieldNum));
+		}
+	}
+	
+	// Return a new, empty index of the given kind for the given field.
+	// An on-disk index replaces any file of the same name.
+	private DBIndex newIndex(int kind, int fieldNum) {
+		switch (kind) {
+		case orderedIndex:
+			return new OrdIndex();
+		case hashIndex:
+			return new HashIndex();
+		case btreeIndex:
+			return BTreeIndex.create(indexFilename(fieldNum, indexSuffixes[kind]));
+		case linearHashIndex:
+			return LinearHashIndex.create(indexFilename(fieldNum, indexSuffixes[kind]));
+		default:
+			throw new IllegalStateException("Error: unknown index kind "+kind);
+		}
+	}
+	
+	// return the name of the file of an index on the given field
+	private String indexFilename(int fieldNum, String suffix) {
+		return filename + "." + schema.getName(fieldNum) + "." + suffix;
+	}
+	
+	// Remove the index on the given field, if there is one, and delete
+	// its file.
+	private void dropIndex(int fieldNum) {
+		DBIndex index = indexes[fieldNum];
+		indexes[fieldNum] = null;
+		if (index == null) {
+			return;
+		}
+		String indexFilename = indexFilename(fieldNum, indexSuffixes[kindOf(index)]);
+		if (index instanceof LazyIndex) {
+			index = ((LazyIndex) index).loaded();
+		}
+		if (index instanceof DiskIndex) {
+			((DiskIndex) index).drop();
+		} else {
+			new File(indexFilename).delete();
+		}
+	}
+	
+	// Initialize the given index with an entry for every record, added
+	// with one call to insertAll(), so that the index can sort them and
+	// build itself in bulk.
 	private void initializeIndex(int fieldNum, DBIndex index) {
 		if (index == null) {
 			throw new IllegalArgumentException("index is null");
 		}
+		KeyBlockPairs entries = extractEntries(fieldNum, directory.numBlocks(), null);
+		index.insertAll(entries.keys, entries.blockNums, entries.size);
+	}
+	
+	// Return the (key, pointer) pairs of the given field for the records
+	// in the first numBlocks data blocks, in block order.  They are
+	// extracted by fork-join tasks, each reading its own run of blocks.
+	// For an online build, each run is read under the read lock, which
+	// the caller must not hold; otherwise the caller must hold a lock.
+	private KeyBlockPairs extractEntries(int fieldNum, int numBlocks, IndexBuild build) {
+		KeyBlockPairs[] parts = new KeyBlockPairs[(numBlocks + buildBlocksPerTask - 1) / buildBlocksPerTask];
+		if (parts.length > 0) {
+			ForkJoinPool.commonPool().invoke(new ExtractTask(fieldNum, numBlocks, build, parts, 0, parts.length));
+		}
+
+		// the parts are in block order, so each key's pointers stay sorted
+		int n = 0;
+		for (KeyBlockPairs part : parts) {
+			n += part.size;
+		}
+		KeyBlockPairs entries = new KeyBlockPairs();
+		entries.keys = new int[n];
+		entries.blockNums = new long[n];
+		for (KeyBlockPairs part : parts) {
+			System.arraycopy(part.keys, 0, entries.keys, entries.size, part.size);
+			System.arraycopy(part.blockNums, 0, entries.blockNums, entries.size, part.size);
+			entries.size += part.size;
+		}
+		return entries;
+	}
+	
+	// A task that extracts the (key, pointer) pairs of field fieldNum from
+	// the data blocks of parts lo to hi-1, where part i is the run of
+	// buildBlocksPerTask blocks starting at the i*buildBlocksPerTask'th
+	// data block.  A task with more than one part splits in two.  Tasks
+	// are never serialized.
+	@SuppressWarnings("serial")
+	private class ExtractTask extends RecursiveAction {
+		final int fieldNum;
+		final int numBlocks;
+		final IndexBuild build;
+		final KeyBlockPairs[] parts;
+		final int lo, hi;
+		
+		ExtractTask(int fieldNum, int numBlocks, IndexBuild build, KeyBlockPairs[] parts, int lo, int hi) {
+			this.fieldNum = fieldNum;
+			this.numBlocks = numBlocks;
+			this.build = build;
+			this.parts = parts;
+			this.lo = lo;
+			this.hi = hi;
+		}
 
-		// search blocks sequentially for the key
-		bf.read(bitmapBlock, blockmapBuffer);      // read the bitmap block
-		for (int blockNum = bitmapBlock+1; blockNum < blockMap.size(); blockNum++) {
-			if (blockMap.getBit(blockNum)) {
-				bf.read(blockNum, buffer);
+		@Override
+		protected void compute() {
+			if (hi - lo > 1) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new ExtractTask(fieldNum, numBlocks, build, parts, lo, mid),
+						new ExtractTask(fieldNum, numBlocks, build, parts, mid, hi));
+				return;
+			}
+			parts[lo] = new KeyBlockPairs();
+			if (build == null) {
+				extract();
+				return;
+			}
+			lock.readLock().lock();
+			try {
+				// the build stops if the database is closed
+				if (builds[fieldNum] == build) {
+					extract();
+					build.scanned[lo] = true;
+				}
+			} finally {
+				lock.readLock().unlock();
+			}
+		}
+		
+		private void extract() {
+			KeyBlockPairs part = parts[lo];
+			int first = lo * buildBlocksPerTask;
+			int last = Math.min(first + buildBlocksPerTask, numBlocks) - 1;
+			long lastBlock = directory.blockNumber(last);
+			for (long blockNum = directory.nextNonEmpty(directory.blockNumber(first)); blockNum >= 0 && blockNum <= lastBlock; blockNum = directory.nextNonEmpty(blockNum+1)) {
+				BlockBuffer buffer = pool.pin(blockNum);
+				Bitmap recMap = recordMap(buffer);
 				for (int recNum = 0; recNum < recMap.size(); recNum++) {
 					if (recMap.getBit(recNum)) {
-						Record rec = schema.blankRecord();
-						int loc = recordLocation(recNum);
-						rec.deserialize(buffer.buffer, loc);
-						IntField f = (IntField) rec.get(fieldNum);
-						int key = f.getValue();
-						index.insert(key, blockNum);
+						int key = buffer.getInt(recordLocation(recNum) + fieldOffsets[fieldNum]);
+						part.add(key, pointer(blockNum, recNum));
+					}
+				}
+				pool.unpin(blockNum, false);
+			}
+		}
+	}
+	
+	// An online build of a new index for field fieldNum.  The build reads
+	// the first numBlocks data blocks, the ones there were when it
+	// started, a part at a time (see ExtractTask).  A change to the index
+	// entries of a record in a part that has been read, or in a block
+	// added since the build started, is captured here, to be applied to
+	// the new index before it is published.  A change in a part that has
+	// not been read yet will be seen when it is read.
+	private class IndexBuild {
+		final int fieldNum;
+		final DBIndex index;
+		final int numBlocks;
+		final boolean[] scanned;     // scanned[i] is true once part i is read
+		
+		// the captured changes, in order; a deleted entry's pointer is
+		// stored as ~pointer, which is negative
+		private KeyBlockPairs changes = new KeyBlockPairs();
+		
+		IndexBuild(int fieldNum, DBIndex index) {
+			this.fieldNum = fieldNum;
+			this.index = index;
+			numBlocks = directory.numBlocks();
+			scanned = new boolean[(numBlocks + buildBlocksPerTask - 1) / buildBlocksPerTask];
+		}
+		
+		// capture a change if its block has been read or is new; the caller
+		// must hold the write lock
+		void capture(int key, long ptr, boolean deleted) {
+			int i = directory.indexOf(blockOf(ptr));
+			if (i >= numBlocks || scanned[i / buildBlocksPerTask]) {
+				changes.add(key, deleted ? ~ptr : ptr);
+			}
+		}
+		
+		// return the changes captured so far, and start a new list; the
+		// caller must hold a lock
+		KeyBlockPairs takeChanges() {
+			KeyBlockPairs result = changes;
+			changes = new KeyBlockPairs();
+			return result;
+		}
+		
+		// apply captured changes to the new index
+		void apply(KeyBlockPairs changes) {
+			for (int i = 0; i < changes.size; i++) {
+				long ptr = changes.blockNums[i];
+				if (ptr >= 0) {
+					index.insert(changes.keys[i], ptr);
+				} else {
+					index.delete(changes.keys[i], ~ptr);
+				}
+			}
+		}
+	}
+	
+	// Return the index restored from the given file: the entries of an
+	// in-memory index are read from it, and an on-disk index is opened.
+	// If rebuild is true, or there is no file, the index is rebuilt by a
+	// scan instead.
+	private DBIndex restoreIndex(int kind, int fieldNum, String indexFilename, boolean rebuild) {
+		if (!rebuild && new File(indexFilename).exists()) {
+			switch (kind) {
+			case orderedIndex:
+				return OrdIndex.load(indexFilename);
+			case hashIndex:
+				return HashIndex.load(indexFilename);
+			case btreeIndex:
+				return BTreeIndex.open(indexFilename);
+			case linearHashIndex:
+				return LinearHashIndex.open(indexFilename);
+			}
+		}
+		DBIndex index = newIndex(kind, fieldNum);
+		initializeIndex(fieldNum, index);
+		return index;
+	}
+	
+	// Restore every index that open() left to be restored.  Writers call
+	// this, under the write lock, before they change the heap: an index
+	// rebuilt by a scan after the change would already hold the new
+	// record, and then get it a second time from the writer.
+	private void loadIndexes() {
+		if (keyIndex instanceof LazyIndex) {
+			((LazyIndex) keyIndex).get();
+		}
+		for (DBIndex index : indexes) {
+			if (index instanceof LazyIndex) {
+				((LazyIndex) index).get();
+			}
+		}
+	}
+	
+	// An index that open() found in the metadata block.  It is restored
+	// the first time it is used, so opening a database doesn't read or
+	// rebuild indexes that are never used.  Readers may restore it at the
+	// same time under the read lock, so restoring is synchronized.
+	private class LazyIndex implements DBIndex {
+		final int kind;
+		final int fieldNum;
+		final String indexFilename;
+		final boolean rebuild;
+		private volatile DBIndex index;
+		
+		LazyIndex(int kind, int fieldNum, String indexFilename, boolean rebuild) {
+			this.kind = kind;
+			this.fieldNum = fieldNum;
+			this.indexFilename = indexFilename;
+			this.rebuild = rebuild;
+		}
+		
+		// return the index, restoring it if this is its first use
+		DBIndex get() {
+			DBIndex result = index;
+			if (result == null) {
+				synchronized (this) {
+					if (index == null) {
+						index = restoreIndex(kind, fieldNum, indexFilename, rebuild);
 					}
+					result = index;
 				}
 			}
+			return result;
+		}
+		
+		// return the index, or null if it has not been restored
+		DBIndex loaded() {
+			return index;
+		}
+		
+		boolean isLoaded() {
+			return index != null;
+		}
+
+		@Override
+		public void insert(int key, long blockNum) {
+			get().insert(key, blockNum);
+		}
+
+		@Override
+		public void insertAll(int[] keys, long[] blockNums, int n) {
+			get().insertAll(keys, blockNums, n);
+		}
+
+		@Override
+		public void delete(int key, long blockNum) {
+			get().delete(key, blockNum);
+		}
+
+		@Override
+		public List<Long> lookup(int key) {
+			return get().lookup(key);
 		}
 
-		//throw new UnsupportedOperationException();
+		@Override
+		public int lookup(int key, long[] dest) {
+			return get().lookup(key, dest);
+		}
+	}
+	
+	/**
+	 * Choose what the indexes store: record IDs, which lead a lookup
+	 * straight to the record's slot (the default), or block numbers, in
+	 * which case every record in the block is checked.  The indexes are
+	 * rebuilt if the choice changes.
+	 * @param useRecordIds
+	 */
+	public void setRecordIdIndexes(boolean useRecordIds) {
+		lock.writeLock().lock();
+		try {
+			if (useRecordIds == recordIds) {
+				return;
+			}
+			// builds capture pointers of the current form
+			for (int i = 0; i < builds.length; i++) {
+				checkNoBuild(i);
+			}
+			recordIds = useRecordIds;
+			keyIndex = new HashIndex();
+			initializeIndex(schema.getKeyIndex(), keyIndex);
+			for (int i = 0; i < schema.size(); i++) {
+				if (indexes[i] != null) {
+					int kind = kindOf(indexes[i]);
+					dropIndex(i);
+					DBIndex index = newIndex(kind, i);
+					initializeIndex(i, index);
+					indexes[i] = index;
+				}
+			}
+			writeMetadata(false);
+			checkpoint();
+		} finally {
+			lock.writeLock().unlock();
+		}
 	}
 	
 	/**
@@ -450,20 +2032,110 @@ public class HeapDB implements DB, Iterable<Record>{
 	 * no index exists for the given field.
 	 */
 	public void deleteIndex(String fname) {
-		int fieldNum = schema.getFieldIndex(fname);
-		if (fieldNum < 0) {
-			throw new IllegalArgumentException("no such field: "+fname);
+		lock.writeLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("no such field: "+fname);
+			}
+			checkNoBuild(fieldNum);
+			dropIndex(fieldNum);
+			writeMetadata(false);
+			checkpoint();
+		} finally {
+			lock.writeLock().unlock();
 		}
-		indexes[fieldNum] = null;
 	}
 	
 	/**
-	 * Delete the index for the primary key.
+	 * Delete the index for the primary key.  The database still keeps
+	 * its own primary key index, which is used to check that keys are
+	 * unique.
 	 */
 	public void deleteIndex() {
 		deleteIndex(schema.getKey());
 	}
 	
+	/**
+	 * Create Bloom filters for the given integer field, one for each
+	 * block, with about 1% false positives.  Lookups of a value of a field
+	 * without an index then read only the blocks whose filters contain the
+	 * value.  Filters cost much less than an index, about 10 bits per
+	 * record.
+	 */
+	public void createBloomFilter(String fname) {
+		createBloomFilter(fname, defaultFilterBits);
+	}
+	
+	/**
+	 * Create Bloom filters for the given integer field, with the given
+	 * number of bits per record, from 1 to 64.  More bits give fewer
+	 * false positives.  Filters the field already has are replaced.
+	 */
+	public void createBloomFilter(String fname, int bitsPerRecord) {
+		if (bitsPerRecord < 1 || bitsPerRecord > maxFilterBits) {
+			throw new IllegalArgumentException("bits per record must be from 1 to "+maxFilterBits);
+		}
+		lock.writeLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("no such field: "+fname);
+			}
+			if (!(schema.getType(fieldNum) instanceof IntType)) {
+				throw new IllegalArgumentException("field "+fname+" is not of integer type");
+			}
+			filters.set(fieldNum, buildFilters(fieldNum, bitsPerRecord));
+			filterBits[fieldNum] = bitsPerRecord;
+			writeMetadata(false);
+			checkpoint();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Rebuild the Bloom filters of the given field.  A filter keeps the
+	 * values of records that were deleted or modified, which make lookups
+	 * read blocks they don't need to, and rebuilding removes them.  Do
+	 * nothing if the field has no filters.
+	 */
+	public void rebuildBloomFilter(String fname) {
+		lock.writeLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("no such field: "+fname);
+			}
+			if (filterBits[fieldNum] > 0) {
+				filters.set(fieldNum, buildFilters(fieldNum, filterBits[fieldNum]));
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
+	/**
+	 * Delete the Bloom filters of the given field.  Do nothing if the
+	 * field has none.
+	 */
+	public void deleteBloomFilter(String fname) {
+		lock.writeLock().lock();
+		try {
+			int fieldNum = schema.getFieldIndex(fname);
+			if (fieldNum < 0) {
+				throw new IllegalArgumentException("no such field: "+fname);
+			}
+			filters.set(fieldNum, null);
+			filterBits[fieldNum] = 0;
+			new File(indexFilename(fieldNum, filterSuffix)).delete();
+			writeMetadata(false);
+			checkpoint();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+	
 	/**
 	 * Iterate over all the records in this DB.
 	 */
@@ -472,62 +2144,72 @@ public class HeapDB implements DB, Iterable<Record>{
 	}
 	
 	// An Iterator over the records in the database, implemented as a nested class.
+	// Each iterator borrows its own buffer from the buffer pool and copies
+	// each block into it, so it never holds a pin between calls, and
+	// lookups, updates and other iterators (also on other threads) can't
+	// overwrite its block.  The buffer is given back when the iterator
+	// runs out of records.  Blocks without records are skipped using the
+	// block directory.
 	private class DBIterator implements Iterator<Record> {
 		Record rec;
-		int b, nb;      // block number, number of blocks
+		long b;         // block number, or -1 when there are no more records
 		int r, nr;      // record number, number of records
+		BlockBuffer buffer;
+		Bitmap recMap;
+		ReadAhead readAhead = new ReadAhead();
 		
 		DBIterator() {
 			rec = schema.blankRecord();
-			bf.read(bitmapBlock, blockmapBuffer); 
-			b = bitmapBlock+1;       // first data block
-			nb = blockMap.size();
-			r = -1;                  // a value of -1 means block status is unknown
+			buffer = pool.borrowBuffer();
+			recMap = recordMap(buffer);
 			nr = recMap.size();
+			b = -1;
+			r = nr;                  // a value of nr means block b is used up
 			findNext();
 		}
 		
-		// locate next (b,r) value such that the bit is set 
-		// on the block map at b and on the record map at r
+		// locate next (b,r) value such that block b holds records
+		// and the bit is set on the record map at r
 		private void findNext() {
-			// if r is -1, status of block b is unknown
-			if (r == -1) {
-				// find a block that is in use
-				while (b < nb) {
-					if (blockMap.getBit(b)) {
-						break;
-					}
-					b++;
+			while (true) {
+				// find a record r in block b
+				r++;
+				while (r < nr && !recMap.getBit(r)) {
+					r++;
 				}
-				if (b == nb) {
-					// no more blocks available
-					r = nr;
+				if (r < nr) {
 					return;
 				}
-				// block b is in use; read it
-				bf.read(b, buffer);
-			}
-			// find a record r in block b
-			r++;
-			while (r < nr) {
-				if (recMap.getBit(r)) {
-					break;
+				
+				// move to the next block that holds records, and copy it;
+				// the read lock is held only while the block is copied, so
+				// a slow consumer does not hold up writers
+				lock.readLock().lock();
+				try {
+					b = directory.nextNonEmpty(b + 1);
+					if (b < 0) {
+						// no more blocks available
+						pool.returnBuffer(buffer);
+						buffer = null;
+						return;
+					}
+					readAhead.advance(b);
+					pool.copyBlock(b, buffer);
+				} finally {
+					lock.readLock().unlock();
 				}
-				r++;
-			}
-			if (r == nr) {
-				// no record slots available
-				b++;
 				r = -1;
-				findNext();
 			}
 		}
 		
 		public boolean hasNext() {
-			return b < nb || r < nr;
+			return b >= 0;
 		}
 		
 		public Record next() {
+			if (b < 0) {
+				throw new NoSuchElementException();
+			}
 			// block b is currently in the buffer
 			int index = recordLocation(r);
 			rec.deserialize(buffer.buffer, index);
@@ -536,23 +2218,82 @@ public class HeapDB implements DB, Iterable<Record>{
 		}
 	}
 	
+	// Read-ahead for a scan in block order.  The blocks a scan will visit
+	// next are known from the block directory, so a window of them is
+	// handed to the buffer pool to read on its background thread.  More
+	// blocks are requested when the scan is halfway through the window.
+	// Only one request is outstanding at a time, so a scan that is
+	// faster than the reads doesn't queue up reads of blocks it has
+	// already passed.  The caller must hold the lock, since the directory
+	// is read.  A scan that skips blocks can give the list of blocks it
+	// will read instead.
+	private class ReadAhead {
+		long end = -1;        // last block requested so far
+		long trigger = -1;    // request more when the scan reaches this block
+		Future<?> pending;    // the outstanding request, if any
+		long[] blocks;        // the blocks the scan will read, or null
+		int numBlocks;
+		int next;             // position in blocks of the next block to request
+		
+		ReadAhead() {
+		}
+		
+		// read ahead for a scan of the first n of the given blocks, in order
+		ReadAhead(long[] blocks, int n) {
+			this.blocks = blocks;
+			numBlocks = n;
+		}
+		
+		// return the first block after blockNum that the scan will read,
+		// or -1 if there is none
+		private long following(long blockNum) {
+			if (blocks == null) {
+				return directory.nextNonEmpty(blockNum + 1);
+			}
+			while (next < numBlocks && blocks[next] <= blockNum) {
+				next++;
+			}
+			return (next < numBlocks) ? blocks[next] : -1;
+		}
+		
+		void advance(long blockNum) {
+			int window = Math.min(readAheadWindow, pool.maxPrefetch());
+			if (window <= 0 || blockNum < trigger || (pending != null && !pending.isDone())) {
+				return;
+			}
+			long[] next = new long[window];
+			int n = 0;
+			for (long b = following(Math.max(blockNum, end)); b >= 0 && n < window; b = following(b)) {
+				next[n++] = b;
+			}
+			if (n == 0) {
+				trigger = Long.MAX_VALUE;
+				return;
+			}
+			pending = pool.prefetchAsync(next, n);
+			end = next[n-1];
+			trigger = next[n/2];
+		}
+	}
+	
 	/**
 	 * An alternative to toString() that is useful for debugging.
 	 * @return
 	 */
 	public String toStringDiagnostic() {
-		StringBuffer sb = new StringBuffer();
-		Record rec = schema.blankRecord();
+		lock.readLock().lock();
+		try {
+			StringBuffer sb = new StringBuffer();
+			Record rec = schema.blankRecord();
 
-		// read and print the block bitmap
-		bf.read(bitmapBlock, blockmapBuffer); 
-		sb.append("Block bitmap:  "+blockMap);
+			// print the block directory
+			sb.append("Block directory: "+directory);
 
-		for (int blockNum = bitmapBlock+1; blockNum < blockMap.size(); blockNum++) {
-			if (blockMap.getBit(blockNum)) {
+			for (long blockNum = directory.nextNonEmpty(0); blockNum >= 0; blockNum = directory.nextNonEmpty(blockNum+1)) {
 				// print the record bitmap of block i
 				sb.append("Block "+blockNum+"\n");
-				bf.read(blockNum, buffer);
+				BlockBuffer buffer = pool.pin(blockNum);
+				Bitmap recMap = recordMap(buffer);
 				sb.append("Record bitmap: "+recMap);
 				int recsOnLine = 0;
 				for (int recNum = 0; recNum < recMap.size(); recNum++) {
@@ -567,10 +2308,13 @@ public class HeapDB implements DB, Iterable<Record>{
 						}
 					}
 				}
+				pool.unpin(blockNum, false);
 				sb.append("\n");
 			}
+			return sb.toString();
+		} finally {
+			lock.readLock().unlock();
 		}
-		return sb.toString();
 	}
 
 	@Override
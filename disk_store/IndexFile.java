@@ -0,0 +1,53 @@
+package disk_store;
+
+/**
+ * The entries of an in-memory index, as saved in a file so that the
+ * index can be read back instead of rebuilt when a database is opened.
+ *
+ * Layout: int file type, int version, int n, then n entries (int key,
+ * long value).
+ *
+ */
+
+final class IndexFile {
+
+	private static final int indexFileVersion = 1;
+
+	int[] keys;
+	long[] vals;
+	int n;
+
+	private IndexFile(int n) {
+		keys = new int[n];
+		vals = new long[n];
+		this.n = n;
+	}
+
+	/**
+	 * Write n entries to the given file, replacing it, and force the file
+	 * to disk.
+	 */
+	static void write(String filename, int[] keys, long[] vals, int n) {
+		SideFile.write(filename, SideFile.indexEntries, indexFileVersion, "index", out -> {
+			out.writeInt(n);
+			for (int i = 0; i < n; i++) {
+				out.writeInt(keys[i]);
+				out.writeLong(vals[i]);
+			}
+		});
+	}
+
+	/**
+	 * Read the entries in the given file.
+	 */
+	static IndexFile read(String filename) {
+		return SideFile.read(filename, SideFile.indexEntries, indexFileVersion, "index", in -> {
+			IndexFile f = new IndexFile(in.readInt());
+			for (int i = 0; i < f.n; i++) {
+				f.keys[i] = in.readInt();
+				f.vals[i] = in.readLong();
+			}
+			return f;
+		});
+	}
+}
@@ -0,0 +1,499 @@
+package disk_store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A hash index kept on disk with linear hashing, in its own blocked file.
+ * The table grows by splitting one bucket at a time as entries are
+ * added, so it never has to be rehashed all at once.  A lookup reads the
+ * key's bucket page, and its overflow pages if it has any.
+ *
+ * Pages are read and written through a buffer pool.  As with BTreeIndex,
+ * changes are saved by flush() and close(), an index file that was closed
+ * can be opened again with open(), and an index file that was not closed
+ * should be rebuilt after a crash.
+ *
+ */
+
+/* Implementation notes:
+ *  - With level L and split pointer p there are 2^(L+1) + p buckets.  A
+ *    key with hash h is in bucket h mod 2^(L+1), or in bucket h mod
+ *    2^(L+2) if the first bucket is below p, as it has been split already.
+ *    Splitting bucket p moves some of its entries to the new bucket
+ *    p + 2^(L+1).  A bucket is split when the entries would fill more than
+ *    loadFactor of the bucket pages.
+ *  - Bucket pages are found by arithmetic, not through a directory.
+ *    Buckets 0 and 1 are segment 0, and buckets 2^s to 2^(s+1)-1 are
+ *    segment s, whose pages are numbered from segmentStart[s] on.  The
+ *    page numbers of a segment are reserved when its first bucket is
+ *    created, but its pages are only written when they are used.
+ *  - Page layout: int n, long next overflow page, then n entries (int
+ *    key, int count, long value), in no order.  An entry inserted more
+ *    than once is kept once with a count, so lookups don't need to
+ *    remove duplicates.  Page number 0 (the metadata page) means "no
+ *    page", so a page that was never written is an empty bucket.
+ *  - An overflow page emptied by deletes is unlinked and goes on the
+ *    free list.  Buckets are not merged again.
+ */
+
+public class LinearHashIndex implements DiskIndex {
+
+	private static final int indexType = 3;       // file type (see SideFile)
+	private static final int indexVersion = 1;
+	private static final int defaultPoolFrames = 256;
+	private static final double loadFactor = 0.75;
+	private static final int maxSegments = 32;
+
+	// metadata page layout
+	private static final int metadataPage = 0;
+	private static final int fileTypePosition = 0;
+	private static final int versionPosition = fileTypePosition + Integer.BYTES;
+	private static final int levelPosition = versionPosition + Integer.BYTES;
+	private static final int splitPosition = levelPosition + Integer.BYTES;
+	private static final int numPagesPosition = splitPosition + Integer.BYTES;
+	private static final int freeListPosition = numPagesPosition + Long.BYTES;
+	private static final int sizePosition = freeListPosition + Long.BYTES;
+	private static final int numEntriesPosition = sizePosition + Long.BYTES;
+	private static final int segmentsPosition = numEntriesPosition + Long.BYTES;
+
+	// bucket page layout
+	private static final int countPosition = 0;
+	private static final int nextPosition = countPosition + Integer.BYTES;
+	private static final int entriesPosition = nextPosition + Long.BYTES;
+	private static final int entrySize = 2 * Integer.BYTES + Long.BYTES;
+
+	private String filename;
+	private BlockedFile bf;
+	private BufferPool pool;
+	private int pageCapacity;
+
+	// copies of the metadata page
+	private int level;
+	private int split;
+	private long numPages;
+	private long freeList;
+	private long size;          // number of entries, counting copies
+	private long numEntries;    // number of distinct entries
+	private long[] segmentStart = new long[maxSegments];
+
+	// private constructor
+	private LinearHashIndex(String filename, BlockedFile bf, int poolFrames) {
+		this.filename = filename;
+		this.bf = bf;
+		pool = new BufferPool(bf, poolFrames);
+		pageCapacity = (bf.blockSize() - entriesPosition) / entrySize;
+	}
+
+	/**
+	 * Create an empty index in the given file, replacing any existing
+	 * file with the same name.
+	 * @param filename
+	 * @return
+	 */
+	public static LinearHashIndex create(String filename) {
+		return create(filename, defaultPoolFrames);
+	}
+
+	/**
+	 * Create an empty index in the given file, caching up to poolFrames
+	 * pages in memory.
+	 * @param filename
+	 * @param poolFrames
+	 * @return
+	 */
+	public static LinearHashIndex create(String filename, int poolFrames) {
+		try {
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't replace index file "+filename);
+		}
+		LinearHashIndex index = new LinearHashIndex(filename, new BlockedFile(filename), poolFrames);
+		index.clear();
+		return index;
+	}
+
+	/**
+	 * Open an index file that was closed with close().
+	 * @param filename
+	 * @return
+	 */
+	public static LinearHashIndex open(String filename) {
+		return open(filename, defaultPoolFrames);
+	}
+
+	/**
+	 * Open an index file that was closed with close(), caching up to
+	 * poolFrames pages in memory.
+	 * @param filename
+	 * @param poolFrames
+	 * @return
+	 */
+	public static LinearHashIndex open(String filename, int poolFrames) {
+		BlockedFile bf = BlockedFile.open(filename);
+		LinearHashIndex index = new LinearHashIndex(filename, bf, poolFrames);
+		ByteBuffer b = index.pool.pin(metadataPage).buffer;
+		if (b.getInt(fileTypePosition) != indexType || b.getInt(versionPosition) != indexVersion) {
+			index.pool.unpin(metadataPage, false);
+			bf.close();
+			throw new IllegalStateException("Error: "+filename+" is not a version "+indexVersion+" linear hash index");
+		}
+		index.level = b.getInt(levelPosition);
+		index.split = b.getInt(splitPosition);
+		index.numPages = b.getLong(numPagesPosition);
+		index.freeList = b.getLong(freeListPosition);
+		index.size = b.getLong(sizePosition);
+		index.numEntries = b.getLong(numEntriesPosition);
+		for (int s = 0; s < maxSegments; s++) {
+			index.segmentStart[s] = b.getLong(segmentsPosition + s * Long.BYTES);
+		}
+		index.pool.unpin(metadataPage, false);
+		return index;
+	}
+
+	@Override
+	public void clear() {
+		level = 0;
+		split = 0;
+		freeList = 0;
+		size = 0;
+		numEntries = 0;
+		Arrays.fill(segmentStart, 0);
+		segmentStart[0] = 1;
+		numPages = 3;
+		for (long page = 1; page < numPages; page++) {
+			pool.pinNew(page);
+			pool.unpin(page, true);
+		}
+	}
+
+	@Override
+	public void flush() {
+		ByteBuffer b = pool.pinNew(metadataPage).buffer;
+		b.putInt(fileTypePosition, indexType);
+		b.putInt(versionPosition, indexVersion);
+		b.putInt(levelPosition, level);
+		b.putInt(splitPosition, split);
+		b.putLong(numPagesPosition, numPages);
+		b.putLong(freeListPosition, freeList);
+		b.putLong(sizePosition, size);
+		b.putLong(numEntriesPosition, numEntries);
+		for (int s = 0; s < maxSegments; s++) {
+			b.putLong(segmentsPosition + s * Long.BYTES, segmentStart[s]);
+		}
+		pool.unpin(metadataPage, true);
+		pool.flush();
+		bf.force();
+	}
+
+	@Override
+	public void close() {
+		flush();
+		pool.close();
+		bf.close();
+	}
+
+	@Override
+	public void drop() {
+		pool.close();
+		bf.close();
+		try {
+			Files.deleteIfExists(Paths.get(filename));
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Return the number of entries in the index.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Return the number of buckets.
+	 */
+	public int numBuckets() {
+		return (2 << level) + split;
+	}
+
+	/**
+	 * Return the buffer pool that caches the pages of the index.
+	 */
+	public BufferPool getBufferPool() {
+		return pool;
+	}
+
+	// --- buckets and pages ---
+
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+
+	// return the bucket that holds the given key
+	private int bucketOf(int key) {
+		int h = hash(key);
+		int b = h & ((2 << level) - 1);
+		if (b < split) {
+			b = h & ((4 << level) - 1);
+		}
+		return b;
+	}
+
+	// return the page number of the first page of a bucket
+	private long bucketPage(int bucket) {
+		if (bucket < 2) {
+			return segmentStart[0] + bucket;
+		}
+		int s = 31 - Integer.numberOfLeadingZeros(bucket);
+		return segmentStart[s] + (bucket - (1 << s));
+	}
+
+	// Pin a new, empty overflow page and return its number.  A page from
+	// the free list is used if there is one.
+	private long allocatePage() {
+		long page;
+		if (freeList != 0) {
+			page = freeList;
+			freeList = pool.pin(page).buffer.getLong(nextPosition);
+			pool.unpin(page, false);
+		} else {
+			page = numPages++;
+		}
+		pool.pinNew(page);
+		return page;
+	}
+
+	private static int count(ByteBuffer b) {
+		return b.getInt(countPosition);
+	}
+
+	private static int key(ByteBuffer b, int i) {
+		return b.getInt(entriesPosition + i * entrySize);
+	}
+
+	private static int copies(ByteBuffer b, int i) {
+		return b.getInt(entriesPosition + i * entrySize + Integer.BYTES);
+	}
+
+	private static long val(ByteBuffer b, int i) {
+		return b.getLong(entriesPosition + i * entrySize + 2 * Integer.BYTES);
+	}
+
+	private static void putEntry(ByteBuffer b, int i, int key, int copies, long val) {
+		int pos = entriesPosition + i * entrySize;
+		b.putInt(pos, key);
+		b.putInt(pos + Integer.BYTES, copies);
+		b.putLong(pos + 2 * Integer.BYTES, val);
+	}
+
+	// --- lookups ---
+
+	@Override
+	public List<Long> lookup(int key) {
+		List<Long> result = new ArrayList<Long>();
+		long page = bucketPage(bucketOf(key));
+		while (page != 0) {
+			ByteBuffer b = pool.pin(page).buffer;
+			for (int i = 0; i < count(b); i++) {
+				if (key(b, i) == key) {
+					result.add(val(b, i));
+				}
+			}
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			page = next;
+		}
+		return result;
+	}
+
+	@Override
+	public int lookup(int key, long[] dest) {
+		int n = 0;
+		long page = bucketPage(bucketOf(key));
+		while (page != 0) {
+			ByteBuffer b = pool.pin(page).buffer;
+			for (int i = 0; i < count(b); i++) {
+				if (key(b, i) == key) {
+					if (n < dest.length) {
+						dest[n] = val(b, i);
+					}
+					n++;
+				}
+			}
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			page = next;
+		}
+		return n;
+	}
+
+	// --- updates ---
+
+	@Override
+	public void insert(int key, long blockNum) {
+		if (add(bucketOf(key), key, 1, blockNum)) {
+			numEntries++;
+			if (numEntries > loadFactor * pageCapacity * numBuckets()) {
+				splitBucket();
+			}
+		}
+		size++;
+	}
+
+	// Add copies of (key, val) to the given bucket, and return true if
+	// the entry is new.
+	private boolean add(int bucket, int key, int copies, long val) {
+		long page = bucketPage(bucket);
+		long roomPage = 0;      // first page of the bucket with room
+		long last = page;
+		while (page != 0) {
+			ByteBuffer b = pool.pin(page).buffer;
+			int n = count(b);
+			for (int i = 0; i < n; i++) {
+				if (key(b, i) == key && val(b, i) == val) {
+					putEntry(b, i, key, copies(b, i) + copies, val);
+					pool.unpin(page, true);
+					return false;
+				}
+			}
+			if (roomPage == 0 && n < pageCapacity) {
+				roomPage = page;
+			}
+			last = page;
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			page = next;
+		}
+
+		ByteBuffer b;
+		if (roomPage != 0) {
+			b = pool.pin(roomPage).buffer;
+		} else {
+			// the bucket is full, so add an overflow page at its end
+			roomPage = allocatePage();
+			b = pool.getPinned(roomPage).buffer;
+			pool.pin(last).buffer.putLong(nextPosition, roomPage);
+			pool.unpin(last, true);
+		}
+		int n = count(b);
+		putEntry(b, n, key, copies, val);
+		b.putInt(countPosition, n + 1);
+		pool.unpin(roomPage, true);
+		return true;
+	}
+
+	// Split the bucket at the split pointer, moving the entries whose
+	// hash now leads to the new bucket.
+	private void splitBucket() {
+		int newBucket = split + (2 << level);
+		if (newBucket == (2 << level)) {
+			// first bucket of a new segment; reserve its pages
+			int s = level + 1;
+			if (s >= maxSegments) {
+				return;
+			}
+			segmentStart[s] = numPages;
+			numPages += 1L << s;
+		}
+		long newPage = bucketPage(newBucket);
+		pool.pinNew(newPage);
+		pool.unpin(newPage, true);
+
+		// read the old bucket's entries and empty it; its overflow pages
+		// are freed
+		int oldBucket = split;
+		split++;
+		if (split == (2 << level)) {
+			level++;
+			split = 0;
+		}
+		int[] keys = new int[pageCapacity];
+		int[] copies = new int[pageCapacity];
+		long[] vals = new long[pageCapacity];
+		int n = 0;
+		long page = bucketPage(oldBucket);
+		boolean first = true;
+		while (page != 0) {
+			ByteBuffer b = pool.pin(page).buffer;
+			if (n + count(b) > keys.length) {
+				keys = Arrays.copyOf(keys, 2 * keys.length);
+				copies = Arrays.copyOf(copies, 2 * copies.length);
+				vals = Arrays.copyOf(vals, 2 * vals.length);
+			}
+			for (int i = 0; i < count(b); i++) {
+				keys[n] = key(b, i);
+				copies[n] = copies(b, i);
+				vals[n] = val(b, i);
+				n++;
+			}
+			long next = b.getLong(nextPosition);
+			b.putInt(countPosition, 0);
+			if (first) {
+				b.putLong(nextPosition, 0);
+			} else {
+				b.putLong(nextPosition, freeList);
+				freeList = page;
+			}
+			pool.unpin(page, true);
+			first = false;
+			page = next;
+		}
+
+		// put each entry back, in the old bucket or the new one
+		for (int i = 0; i < n; i++) {
+			add(bucketOf(keys[i]), keys[i], copies[i], vals[i]);
+		}
+	}
+
+	@Override
+	public void delete(int key, long blockNum) {
+		long prev = 0;
+		long page = bucketPage(bucketOf(key));
+		boolean firstPage = true;
+		while (page != 0) {
+			ByteBuffer b = pool.pin(page).buffer;
+			int n = count(b);
+			for (int i = 0; i < n; i++) {
+				if (key(b, i) == key && val(b, i) == blockNum) {
+					size--;
+					int c = copies(b, i);
+					if (c > 1) {
+						putEntry(b, i, key, c - 1, blockNum);
+						pool.unpin(page, true);
+						return;
+					}
+					// move the last entry of the page into the hole
+					putEntry(b, i, key(b, n-1), copies(b, n-1), val(b, n-1));
+					b.putInt(countPosition, n - 1);
+					numEntries--;
+					if (n == 1 && !firstPage) {
+						// unlink the empty overflow page and free it
+						long next = b.getLong(nextPosition);
+						b.putLong(nextPosition, freeList);
+						freeList = page;
+						pool.unpin(page, true);
+						pool.pin(prev).buffer.putLong(nextPosition, next);
+						pool.unpin(prev, true);
+						return;
+					}
+					pool.unpin(page, true);
+					return;
+				}
+			}
+			long next = b.getLong(nextPosition);
+			pool.unpin(page, false);
+			prev = page;
+			page = next;
+			firstPage = false;
+		}
+	}
+}
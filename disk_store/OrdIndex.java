@@ -1,254 +1,464 @@
 package disk_store;
 
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
-import java.util.HashMap;
-import java.util.Set;
-import java.util.HashSet;
+import java.util.NoSuchElementException;
 
 /**
- * An ordered index.  Duplicate search key values are allowed,
- * but not duplicate index table entries.  In DB terminology, a
- * search key is not a superkey.
- * 
+ * An ordered index.  Duplicate search key values are allowed, and so
+ * are duplicate index table entries: like every DBIndex, the index
+ * keeps a copy of an entry for each time it is inserted.  In DB
+ * terminology, a search key is not a superkey.
+ *
  * A limitation of this class is that only single integer search
  * keys are supported.
  *
  */
 
-public class OrdIndex implements DBIndex {
-	
+/* Implementation notes:
+ *  - The index is a B+tree of (key, value) entries, sorted by key and
+ *    then by value.  Nodes hold their entries in primitive arrays, so an
+ *    entry costs 12 bytes in a full leaf, and lookups don't allocate.
+ *  - An inner node with n entries has n+1 children.  Entry i is a copy of
+ *    an entry from when child i+1 was split off: every entry under child
+ *    i is <= entry i, and every entry under child i+1 is >= it.
+ *  - Leaves are linked left to right, so a lookup or range scan finds
+ *    its first entry and then walks along the leaves.
+ *  - Adding an entry that is already present adds a second copy, and
+ *    delete removes one copy; lookup() returns each value once.
+ *  - Nodes are not merged when entries are deleted.  A leaf may become
+ *    empty, and is then skipped by lookups.
+ *  - When a full leaf at the right end of the tree gets an entry at its
+ *    end, only the new entry moves to the new leaf, so that entries
+ *    added in order leave full leaves behind.  insertAll() on an empty
+ *    index builds the tree bottom up, also with full leaves.
+ */
+
+public class OrdIndex implements OrderedIndex {
+
+	private static final int nodeSize = 128;    // maximum entries in a node
+
+	private static class Node {
+		int n;                                  // number of entries
+		int[] keys = new int[nodeSize + 1];     // one extra, for a node about to be split
+		long[] vals = new long[nodeSize + 1];
+	}
+
+	private static class Leaf extends Node {
+		Leaf next;
+	}
+
+	private static class Inner extends Node {
+		Node[] children = new Node[nodeSize + 2];
+	}
+
+	private Node root;
+	private int size;           // number of entries
+
+	// the entry to add to the parent after insert() splits a node
+	private int splitKey;
+	private long splitVal;
+
 	/**
 	 * Create an new ordered index.
 	 */
-	
-	/* 
-	 * List to hold index numbers and associated block numbers
-	 * Example List : [[1,1,2], [2,1,2,3], [3,1], [4,3]]
-	 * List explanation: Each inner list starts with the search key value, 
-	 *					 and the following numbers at the block numbers 
-	 *  				 associated with that search key value
-	 */                                   
-	
-	private List <List <Integer>> index; 
-	
-	// Constructor initializes list as empty list
 	public OrdIndex() {
-		
-		index = new ArrayList <List <Integer>>(); // Initialize index as a map
-	
+		root = new Leaf();
 	}
-	
-	/* 
-	 * Modified binary search to return position to add a new index.
-	 * Usually, a binary search returns a mark value if the value
-	 * being searched for is not in the array. However, this search has
-	 * been modified to return the position that the search value would be 
-	 * inserted if it is not found within the array. This search examines 
-	 * the first value of each sub-array, as this is the search key value.
-	 */
-	int addSearch(List <List <Integer>> arr, int l, int r, int x) 
-    { 
-		int mid = l + (r - l) / 2;
-		
-        if (r >= l) 
-        { 
-
-            if (arr.get(mid).get(0) == x) 
-            {
-            	return mid; 
-        	}
-        
-            if (arr.get(mid).get(0) > x)
-            {
-            	return addSearch(arr, l, mid - 1, x); 
-            } 
-
-            return addSearch(arr, mid + 1, r, x); 
-        } 
-        return mid; 
-    } 
-	
-	/*
-	 * Regular binary search to determine position of search key within array.
-	 * Searches first values of each sub-array.
-	 */
-	int binarySearch(List <List <Integer>> arr, int l, int r, int x) 
-    { 
-		
-        if (r >= l) 
-        { 
-
-        	int mid = l + (r - l) / 2;
-        	
-            if (arr.get(mid).get(0) == x) 
-            {
-            	return mid; 
-        	}
-        
-            if (arr.get(mid).get(0) > x)
-            {
-            	return binarySearch(arr, l, mid - 1, x); 
-            } 
-
-            return binarySearch(arr, mid + 1, r, x); 
-        } 
-        return -1; 
-    } 
-	
-	/*
-	 * Binary search designed to find block number located within
-	 * sub-array. Doesn't search through full index, but a given
-	 * sub-array with block number values within.
-	 */
-	int deleteSearch(List <Integer> arr, int l, int r, int x) 
-    { 
-		
-        if (r >= l) 
-        { 
-
-        	int mid = l + (r - l) / 2;
-        	
-            if (arr.get(mid) == x) 
-            {
-            	return mid; 
-        	}
-        
-            if (arr.get(mid) > x)
-            {
-            	return deleteSearch(arr, l, mid - 1, x); 
-            } 
-
-            return deleteSearch(arr, mid + 1, r, x); 
-        } 
-        return -1; 
-    } 
-	
-	// Function to locate a search key within an index and return block numbers at that index
-	@Override
-	public List<Integer> lookup(int key) {
-		
-		// Get location of search key within index using binary search function
-		// Search from beginning to end of index
-		int ind = binarySearch(index, 0, index.size()-1, key);
-		List HoldList = new ArrayList <Integer>();
-		
-		// If the search key does not exist, return an empty list
-		if (ind == -1)
+
+	// compare entry (k1, v1) with entry (k2, v2)
+	private static int compare(int k1, long v1, int k2, long v2) {
+		return (k1 != k2) ? Integer.compare(k1, k2) : Long.compare(v1, v2);
+	}
+
+	// return the position of the first entry in node that is >= (key, val)
+	private static int lowerBound(Node node, int key, long val) {
+		int l = 0;
+		int r = node.n;
+		while (l < r)
 		{
-			return HoldList;
+			int mid = (l + r) >>> 1;
+			if (compare(node.keys[mid], node.vals[mid], key, val) < 0)
+			{
+				l = mid + 1;
+			}
+			else
+			{
+				r = mid;
+			}
 		}
-		
-		// If search key does exist, generate a sub list of all block numbers 
-		// associated with that search key
-		HoldList = index.get(ind).subList(1, index.get(ind).size());
-		
-		// Because the index can store repeat block numbers, but the returned
-		// list should not store repeat block numbers, create a set of the
-		// unique values within the sub-array associated with the search key
-		Set <Integer> blockSet = new HashSet <Integer>();
-		
-		// Iterate through list with values from sub-array and add to set
-		for (int i = 0; i < HoldList.size(); i++)
+		return l;
+	}
+
+	// return the position of the first entry in node that is > (key, val)
+	private static int upperBound(Node node, int key, long val) {
+		int l = 0;
+		int r = node.n;
+		while (l < r)
 		{
-			blockSet.add((Integer) HoldList.get(i));
+			int mid = (l + r) >>> 1;
+			if (compare(node.keys[mid], node.vals[mid], key, val) <= 0)
+			{
+				l = mid + 1;
+			}
+			else
+			{
+				r = mid;
+			}
 		}
-		
-		// Add set values to a new list to match expected return type
-		List HoldList2 = new ArrayList <Integer>();
-		
-		for (Integer b : blockSet)
+		return l;
+	}
+
+	// Return the leaf where the entries >= (key, val) begin.  The first
+	// such entry may be further along, in a following leaf.
+	private Leaf leafFor(int key, long val) {
+		Node node = root;
+		while (node instanceof Inner)
 		{
-			HoldList2.add(b);
+			node = ((Inner) node).children[lowerBound(node, key, val)];
 		}
-		
-		return HoldList2;
+		return (Leaf) node;
 	}
-	
-	// Function to insert a key and block number within an index
+
+	// Function to locate a search key within an index and return block numbers at that index
 	@Override
-	public void insert(int key, int blockNum) {
-		//System.out.println(index);
-		// If index is not empty
-		if (index.size() > 0)
+	public List<Long> lookup(int key) {
+		List <Long> result = new ArrayList <Long>();
+		Leaf leaf = leafFor(key, Long.MIN_VALUE);
+		int i = lowerBound(leaf, key, Long.MIN_VALUE);
+		for ( ; leaf != null; leaf = leaf.next, i = 0)
 		{
-			// Use binary search to determine position of key and block number insert
-			int ind = addSearch(index, 0, index.size()-1, key);
-			
-			// Determine if key goes at end of index
-			if (ind > index.size()-1)
+			for ( ; i < leaf.n; i++)
 			{
-				// Create new list and add to index at discovered location
-				ArrayList holdList = new ArrayList <Integer>();
-				index.add(holdList);
-				// Add key and block number to list at index at discovered location
-				index.get(ind).add(key);
-				index.get(ind).add(blockNum);
+				if (leaf.keys[i] != key)
+				{
+					return result;
+				}
+				// copies of an entry are next to each other
+				if (result.isEmpty() || result.get(result.size() - 1) != leaf.vals[i])
+				{
+					result.add(leaf.vals[i]);
+				}
 			}
-			else
+		}
+		return result;
+	}
+
+	// Copy the block numbers for a search key into dest, without
+	// allocating anything.
+	@Override
+	public int lookup(int key, long[] dest) {
+		int count = 0;
+		long last = 0;
+		Leaf leaf = leafFor(key, Long.MIN_VALUE);
+		int i = lowerBound(leaf, key, Long.MIN_VALUE);
+		for ( ; leaf != null; leaf = leaf.next, i = 0)
+		{
+			for ( ; i < leaf.n; i++)
 			{
-				// Determine if key goes at position already occupied by different key value
-				if (index.get(ind).get(0) != key)
+				if (leaf.keys[i] != key)
 				{
-					// Create new list and add to index at discovered location
-					ArrayList holdList = new ArrayList <Integer>();
-					index.add(ind, holdList);
-					// Add key and block number to list at index at discovered location
-					index.get(ind).add(key);
-					index.get(ind).add(blockNum);
+					return count;
 				}
-				// Determine if key already exists in index
-				else
+				if (count == 0 || leaf.vals[i] != last)
 				{
-					// Add block number to already existing list
-					index.get(ind).add(blockNum);
-					// Sort values in index at search key minus the search key value
-					Collections.sort(index.get(ind).subList(1, index.get(ind).size()));
+					last = leaf.vals[i];
+					if (count < dest.length)
+					{
+						dest[count] = last;
+					}
+					count++;
 				}
 			}
 		}
-		// If index is empty
-		else
+		return count;
+	}
+
+	// Iterate over the block numbers of all search keys from lo to hi,
+	// walking along the leaves from the first entry >= lo.
+	@Override
+	public Iterator<Long> rangeIterator(int lo, int hi) {
+		return new Iterator<Long>() {
+			Leaf leaf = leafFor(lo, Long.MIN_VALUE);
+			int pos = lowerBound(leaf, lo, Long.MIN_VALUE);
+
+			@Override
+			public boolean hasNext() {
+				while (leaf != null && pos == leaf.n)
+				{
+					leaf = leaf.next;
+					pos = 0;
+				}
+				return leaf != null && leaf.keys[pos] <= hi;
+			}
+
+			@Override
+			public Long next() {
+				if (!hasNext())
+				{
+					throw new NoSuchElementException();
+				}
+				return leaf.vals[pos++];
+			}
+		};
+	}
+
+	// Function to insert a key and block number within an index
+	@Override
+	public void insert(int key, long blockNum) {
+		Node right = insert(root, key, blockNum);
+		if (right != null)
+		{
+			// the root was split, so the tree grows a level
+			Inner newRoot = new Inner();
+			newRoot.n = 1;
+			newRoot.keys[0] = splitKey;
+			newRoot.vals[0] = splitVal;
+			newRoot.children[0] = root;
+			newRoot.children[1] = right;
+			root = newRoot;
+		}
+		size++;
+	}
+
+	// Add (key, val) under the given node.  If the node has to be split,
+	// return the new node to its right and leave the entry that separates
+	// them in splitKey and splitVal, else return null.
+	private Node insert(Node node, int key, long val) {
+		int i = upperBound(node, key, val);
+		if (node instanceof Leaf)
+		{
+			Leaf leaf = (Leaf) node;
+			insertEntry(leaf, i, key, val);
+			if (leaf.n <= nodeSize)
+			{
+				return null;
+			}
+			boolean appended = (i == leaf.n - 1 && leaf.next == null);
+			return splitLeaf(leaf, appended ? leaf.n - 1 : leaf.n / 2);
+		}
+
+		Inner inner = (Inner) node;
+		Node right = insert(inner.children[i], key, val);
+		if (right == null)
+		{
+			return null;
+		}
+		insertEntry(inner, i, splitKey, splitVal);
+		System.arraycopy(inner.children, i + 1, inner.children, i + 2, inner.n - i - 1);
+		inner.children[i + 1] = right;
+		if (inner.n <= nodeSize)
 		{
-			// Create new array and add to index
-			ArrayList holdList = new ArrayList <Integer>();
-			index.add(0, holdList);
-			// Insert key and block number to the list in index
-			index.get(0).add(key);
-			index.get(0).add(blockNum);
+			return null;
 		}
+		return splitInner(inner);
+	}
+
+	// insert (key, val) at position i of node
+	private static void insertEntry(Node node, int i, int key, long val) {
+		System.arraycopy(node.keys, i, node.keys, i + 1, node.n - i);
+		System.arraycopy(node.vals, i, node.vals, i + 1, node.n - i);
+		node.keys[i] = key;
+		node.vals[i] = val;
+		node.n++;
+	}
+
+	// move the entries of leaf from position mid on to a new leaf
+	private Leaf splitLeaf(Leaf leaf, int mid) {
+		Leaf right = new Leaf();
+		right.n = leaf.n - mid;
+		System.arraycopy(leaf.keys, mid, right.keys, 0, right.n);
+		System.arraycopy(leaf.vals, mid, right.vals, 0, right.n);
+		leaf.n = mid;
+		right.next = leaf.next;
+		leaf.next = right;
+		splitKey = right.keys[0];
+		splitVal = right.vals[0];
+		return right;
 	}
 
+	// move the upper half of the entries and children of inner to a new
+	// node; the middle entry goes up to the parent
+	private Inner splitInner(Inner inner) {
+		int mid = inner.n / 2;
+		Inner right = new Inner();
+		right.n = inner.n - mid - 1;
+		System.arraycopy(inner.keys, mid + 1, right.keys, 0, right.n);
+		System.arraycopy(inner.vals, mid + 1, right.vals, 0, right.n);
+		System.arraycopy(inner.children, mid + 1, right.children, 0, right.n + 1);
+		Arrays.fill(inner.children, mid + 1, inner.n + 1, null);
+		splitKey = inner.keys[mid];
+		splitVal = inner.vals[mid];
+		inner.n = mid;
+		return right;
+	}
+
+	// Function to insert many key and block number pairs within an index.
+	// The pairs are sorted, and an empty index is then built from them
+	// bottom up.  Otherwise they are inserted in order, so that runs of
+	// them go into the same leaf, and pairs past the end of the index fill
+	// new leaves completely.
 	@Override
-	public void delete(int key, int blockNum) {
-		
-		// Determine if key exists in index with binary search
-		int ind = binarySearch(index, 0, index.size()-1, key);
-		
-		// Determine if key exists in the index
-		if (ind != -1)
+	public void insertAll(int[] keys, long[] blockNums, int n) {
+		long[] order = sortedByKey(keys, n);
+		int[] sortedKeys = new int[n];
+		long[] vals = new long[n];
+		for (int j = 0; j < n; j++)
+		{
+			sortedKeys[j] = sortKey(order[j]);
+			vals[j] = blockNums[sortPosition(order[j])];
+		}
+
+		// sort the block numbers of each key
+		for (int j = 0; j < n; )
 		{
-			// Get list of all block numbers associated with search key
-			List holdList =  index.get(ind).subList(1, index.get(ind).size());
-			
-			// Run block number list through binary search to find index of block number
-			int ind2 = deleteSearch(holdList, 0, holdList.size()-1, blockNum);
-			
-			// Delete block number if it exists in list
-			if (ind2 != -1)
+			int start = j;
+			while (j < n && sortedKeys[j] == sortedKeys[start])
 			{
-				index.get(ind).remove(ind2+1);
+				j++;
 			}
-			
-			// If index at key becomes size 1, this means that only the search key
-			// value is left, and therefore can be safely deleted from the index.
-			if (index.get(ind).size() == 1)
+			Arrays.sort(vals, start, j);
+		}
+
+		if (size == 0)
+		{
+			build(sortedKeys, vals, n);
+			return;
+		}
+		for (int j = 0; j < n; j++)
+		{
+			insert(sortedKeys[j], vals[j]);
+		}
+	}
+
+	// Replace the tree with one holding n entries, sorted by key and then
+	// by value.  The leaves are filled completely, and each level of
+	// inner nodes is built over the level below, with the nodes of that
+	// level spread evenly over their parents.
+	private void build(int[] keys, long[] vals, int n) {
+		int numNodes = Math.max(1, (n + nodeSize - 1) / nodeSize);
+		Node[] level = new Node[numNodes];
+		int[] firstKeys = new int[numNodes];      // the first entry under each node
+		long[] firstVals = new long[numNodes];
+		Leaf prev = null;
+		for (int i = 0; i < numNodes; i++)
+		{
+			Leaf leaf = new Leaf();
+			int start = i * nodeSize;
+			leaf.n = Math.min(nodeSize, n - start);
+			System.arraycopy(keys, start, leaf.keys, 0, leaf.n);
+			System.arraycopy(vals, start, leaf.vals, 0, leaf.n);
+			firstKeys[i] = leaf.keys[0];
+			firstVals[i] = leaf.vals[0];
+			if (prev != null)
 			{
-				index.remove(ind);
+				prev.next = leaf;
 			}
+			prev = leaf;
+			level[i] = leaf;
 		}
+
+		while (numNodes > 1)
+		{
+			int numParents = (numNodes + nodeSize) / (nodeSize + 1);
+			Node[] parents = new Node[numParents];
+			int[] parentKeys = new int[numParents];
+			long[] parentVals = new long[numParents];
+			for (int p = 0; p < numParents; p++)
+			{
+				int start = (int)((long)numNodes * p / numParents);
+				int end = (int)((long)numNodes * (p + 1) / numParents);
+				// entry i is the first entry under child i+1
+				Inner inner = new Inner();
+				inner.n = end - start - 1;
+				System.arraycopy(level, start, inner.children, 0, end - start);
+				System.arraycopy(firstKeys, start + 1, inner.keys, 0, inner.n);
+				System.arraycopy(firstVals, start + 1, inner.vals, 0, inner.n);
+				parents[p] = inner;
+				parentKeys[p] = firstKeys[start];
+				parentVals[p] = firstVals[start];
+			}
+			level = parents;
+			firstKeys = parentKeys;
+			firstVals = parentVals;
+			numNodes = numParents;
+		}
+		root = level[0];
+		size = n;
+	}
+
+	// Return the positions 0..n-1 of the keys array, each packed into a
+	// long with its key in the high half, sorted by key and then by
+	// position.  Large arrays are sorted in parallel.
+	static long[] sortedByKey(int[] keys, int n) {
+		long[] order = new long[n];
+		for (int i = 0; i < n; i++)
+		{
+			order[i] = ((long)keys[i] << 32) | i;
+		}
+		Arrays.parallelSort(order);
+		return order;
+	}
+
+	static int sortKey(long packed) {
+		return (int)(packed >> 32);
+	}
+
+	static int sortPosition(long packed) {
+		return (int)packed;
+	}
+
+	@Override
+	public void delete(int key, long blockNum) {
+		Leaf leaf = leafFor(key, blockNum);
+		int i = lowerBound(leaf, key, blockNum);
+
+		// the entry may be at the start of a following leaf
+		while (leaf != null && i == leaf.n)
+		{
+			leaf = leaf.next;
+			i = 0;
+		}
+		if (leaf == null || leaf.keys[i] != key || leaf.vals[i] != blockNum)
+		{
+			return;
+		}
+
+		System.arraycopy(leaf.keys, i + 1, leaf.keys, i, leaf.n - i - 1);
+		System.arraycopy(leaf.vals, i + 1, leaf.vals, i, leaf.n - i - 1);
+		leaf.n--;
+		size--;
+	}
+
+	/**
+	 * Save the entries of the index in the given file.
+	 * @param filename
+	 */
+	public void save(String filename) {
+		int[] keys = new int[size];
+		long[] vals = new long[size];
+		int n = 0;
+		for (Leaf leaf = leafFor(Integer.MIN_VALUE, Long.MIN_VALUE); leaf != null; leaf = leaf.next)
+		{
+			System.arraycopy(leaf.keys, 0, keys, n, leaf.n);
+			System.arraycopy(leaf.vals, 0, vals, n, leaf.n);
+			n += leaf.n;
+		}
+		IndexFile.write(filename, keys, vals, n);
+	}
+	
+	/**
+	 * Return an index holding the entries saved in the given file.
+	 * @param filename
+	 * @return
+	 */
+	public static OrdIndex load(String filename) {
+		IndexFile f = IndexFile.read(filename);
+		OrdIndex index = new OrdIndex();
+		index.insertAll(f.keys, f.vals, f.n);
+		return index;
 	}
 	
 	/**
@@ -256,18 +466,9 @@ public class OrdIndex implements DBIndex {
 	 * @return
 	 */
 	public int size() {
-		int size = 0;
-		
-		// Count size as number of values in each sub-array of index minus 1 for
-		// each sub-array as the first value is the search key, which shouldn't
-		// be counted.
-		for (int i = 0; i < index.size(); i++)
-		{
-			size += index.get(i).size()-1;
-		}
 		return size;
 	}
-	
+
 	@Override
 	public String toString() {
 		throw new UnsupportedOperationException();
@@ -0,0 +1,24 @@
+package disk_store;
+
+import java.util.Iterator;
+
+/**
+ * A DBIndex that keeps its search key values in order, so that it can
+ * find all the entries with keys in a range.
+ *
+ */
+
+public interface OrderedIndex extends DBIndex {
+
+	/**
+	 * Return an iterator over the values (block numbers or record IDs)
+	 * of all entries with search key values between lo and hi, inclusive.
+	 * Entries are returned in order of search key value, and each copy
+	 * of an entry is returned, unlike lookup().  The index must
+	 * not be changed while the iterator is in use.
+	 * @param lo smallest search key value
+	 * @param hi largest search key value
+	 * @return
+	 */
+	public Iterator<Long> rangeIterator(int lo, int hi);
+}
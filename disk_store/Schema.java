@@ -154,6 +154,13 @@ public class Schema extends Type {
 		}
 	}
 	
+	/**
+	 * return the number of bytes written by serialize
+	 */
+	public int serializedLength() {
+		return Integer.BYTES + fnames.size() * (maxFieldNameLength + 2*Integer.BYTES);
+	}
+	
 	/**
 	 * create a RecordType from the bytes at the given buffer, at the given position
 	 */
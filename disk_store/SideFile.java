@@ -0,0 +1,74 @@
+package disk_store;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Reads and writes the small files a HeapDB keeps next to its database
+ * file, such as saved indexes and zone maps.  A side file starts with
+ * an int file type and an int version, and the caller reads and writes
+ * the rest as a stream.
+ *
+ * File types, which tell the files of this package apart: 0 HeapDB,
+ * 2 B+tree index, 3 linear hash index, and the side file types below.
+ *
+ */
+
+final class SideFile {
+
+	static final int indexEntries = 4;     // see IndexFile
+	static final int zoneMap = 5;          // see ZoneMap
+	static final int bloomFilters = 6;     // see BloomFilters
+
+	interface Body {
+		void write(DataOutputStream out) throws IOException;
+	}
+
+	interface Reader<T> {
+		T read(DataInputStream in) throws IOException;
+	}
+
+	private SideFile() {
+	}
+
+	/**
+	 * Write a side file of the given type and version, replacing the
+	 * file, and force it to disk.  body writes what follows the header.
+	 * @param what name of the kind of file, for error messages
+	 */
+	static void write(String filename, int fileType, int version, String what, Body body) {
+		try (FileOutputStream file = new FileOutputStream(filename);
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(file, 1 << 16))) {
+			out.writeInt(fileType);
+			out.writeInt(version);
+			body.write(out);
+			out.flush();
+			file.getFD().sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't write "+what+" file "+filename);
+		}
+	}
+
+	/**
+	 * Check the header of a side file of the given type and version, and
+	 * return what reader reads from the rest of it.
+	 * @param what name of the kind of file, for error messages
+	 */
+	static <T> T read(String filename, int fileType, int version, String what, Reader<T> reader) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(filename), 1 << 16))) {
+			if (in.readInt() != fileType || in.readInt() != version) {
+				throw new IllegalStateException("Error: "+filename+" is not a version "+version+" "+what+" file");
+			}
+			return reader.read(in);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't read "+what+" file "+filename);
+		}
+	}
+}
@@ -0,0 +1,410 @@
+package disk_store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * A redo log for the blocks of a HeapDB.  A change to a data block is
+ * appended to the log before the block may be written back to the
+ * database file, so that after a crash the change can be redone from
+ * the log.
+ *
+ * Each log record describes one change to one block: a record slot was
+ * filled (INSERT), cleared (DELETE) or overwritten (MODIFY), or the whole
+ * block was replaced (PAGE).  A record gives the new contents, so
+ * redoing the log records in order from the last checkpoint gives the
+ * same blocks, whatever state the blocks were in on disk.
+ *
+ * A log sequence number (LSN) is the position just past a log record in
+ * the sequence of all bytes ever appended to the log.  flush(lsn) makes
+ * sure the log is on disk up to lsn.  Threads that flush at the same time
+ * share one force of the file (group commit): one thread writes and
+ * forces everything appended so far, and the others wait for it.
+ *
+ */
+
+/* Implementation notes:
+ *  - Record layout: int body length, int CRC32 of the body, then the
+ *    body: byte type, long block number, int slot, then the data.  A
+ *    record with a short body or a bad CRC marks the end of the log;
+ *    it is the torn tail of a write that was under way in a crash.
+ *  - Appended records collect in buffer, which starts at writtenLSN.
+ *    A flushing thread takes the buffer and leaves the spare one in its
+ *    place, so appends continue while the log is being forced.
+ *  - The file holds the log from baseLSN on.  truncate() empties the
+ *    file after a checkpoint, and baseLSN moves up to the end of the log.
+ *  - If a write or force of the file fails, it is not known what part of
+ *    the log reached the disk, so the log is marked failed, and every
+ *    later append() and flush() throws.
+ */
+
+public class WriteAheadLog {
+
+	// log record types
+	public static final byte INSERT = 1;
+	public static final byte DELETE = 2;
+	public static final byte MODIFY = 3;
+	public static final byte PAGE = 4;
+
+	private static final int headerSize = 2 * Integer.BYTES;                     // body length, CRC
+	private static final int bodyHeaderSize = 1 + Long.BYTES + Integer.BYTES;    // type, block, slot
+	private static final int bufferSize = 1 << 20;
+	private static final int batchMillis = 10;   // force interval for Durability.BATCH
+
+	/**
+	 * Receives the log records during replay().
+	 */
+	public interface Redo {
+		void redo(byte type, long blockNum, int slot, byte[] data);
+	}
+
+	private FileChannel fc;
+	private long baseLSN;        // LSN of the first byte in the file
+	private long writtenLSN;     // the log before this LSN is in the file
+	private long durableLSN;     // the log before this LSN has been flushed
+	private long endLSN;         // LSN just past the last appended record
+	private ByteBuffer buffer;   // records after writtenLSN
+	private ByteBuffer spare;
+	private boolean flushing;    // true while a thread writes and forces the log
+	private boolean force = true;
+	private boolean failed;      // true after a write or force of the file failed
+	private ScheduledExecutorService flusher;
+
+	// statistics
+	private long forces;
+
+	private WriteAheadLog(FileChannel fc, long size) {
+		this.fc = fc;
+		baseLSN = 0;
+		writtenLSN = durableLSN = endLSN = size;
+		buffer = ByteBuffer.allocate(bufferSize);
+		spare = ByteBuffer.allocate(bufferSize);
+	}
+
+	/**
+	 * Create an empty log, replacing any existing log with the same name.
+	 * @param filename
+	 * @return
+	 */
+	public static WriteAheadLog create(String filename) {
+		try {
+			FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+			return new WriteAheadLog(fc, 0);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't create log file "+filename);
+		}
+	}
+
+	/**
+	 * Open an existing log, or create an empty one if there is none.
+	 * Use replay() to read the records in the log.
+	 * @param filename
+	 * @return
+	 */
+	public static WriteAheadLog open(String filename) {
+		try {
+			FileChannel fc = FileChannel.open(Paths.get(filename), StandardOpenOption.CREATE,
+					StandardOpenOption.READ, StandardOpenOption.WRITE);
+			return new WriteAheadLog(fc, fc.size());
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't open log file "+filename);
+		}
+	}
+
+	/**
+	 * Set when the log is forced to disk (see Durability).  With
+	 * Durability.NONE, flush() writes the log to the file but does not
+	 * force it.
+	 * @param durability
+	 */
+	public synchronized void setDurability(Durability durability) {
+		force = (durability != Durability.NONE);
+		if (durability == Durability.BATCH && flusher == null) {
+			flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+				Thread t = new Thread(r, "log-flusher");
+				t.setDaemon(true);
+				return t;
+			});
+			flusher.scheduleWithFixedDelay(() -> flush(endLSN()), batchMillis, batchMillis, TimeUnit.MILLISECONDS);
+		} else if (durability != Durability.BATCH && flusher != null) {
+			flusher.shutdown();
+			flusher = null;
+		}
+	}
+
+	/**
+	 * Append a log record for a change to the given block, and return
+	 * its LSN.  The record is not necessarily in the file until flush()
+	 * is called with the LSN.
+	 * @param type INSERT, DELETE, MODIFY or PAGE
+	 * @param blockNum
+	 * @param slot record number within the block (not used for PAGE)
+	 * @param src array holding the new contents
+	 * @param offset position of the new contents in src
+	 * @param len number of bytes of new contents
+	 * @return
+	 */
+	public synchronized long append(byte type, long blockNum, int slot, byte[] src, int offset, int len) {
+		checkFailed();
+		int bodyLen = bodyHeaderSize + len;
+		if (buffer.remaining() < headerSize + bodyLen) {
+			// make room by writing the buffer out
+			while (flushing) {
+				waitForFlush();
+			}
+			checkFailed();
+			if (buffer.position() > 0) {
+				buffer.flip();
+				try {
+					writeFully(buffer, writtenLSN);
+				} catch (IllegalStateException e) {
+					failed = true;
+					throw e;
+				}
+				writtenLSN += buffer.limit();
+				buffer.clear();
+			}
+			if (buffer.remaining() < headerSize + bodyLen) {
+				buffer = ByteBuffer.allocate(headerSize + bodyLen);
+			}
+		}
+		int start = buffer.position();
+		buffer.putInt(bodyLen);
+		buffer.putInt(0);    // CRC, filled in below
+		buffer.put(type);
+		buffer.putLong(blockNum);
+		buffer.putInt(slot);
+		buffer.put(src, offset, len);
+		CRC32 crc = new CRC32();
+		crc.update(buffer.array(), start + headerSize, bodyLen);
+		buffer.putInt(start + Integer.BYTES, (int)crc.getValue());
+		endLSN += headerSize + bodyLen;
+		return endLSN;
+	}
+
+	/**
+	 * Return the LSN just past the last appended record.
+	 */
+	public synchronized long endLSN() {
+		return endLSN;
+	}
+
+	/**
+	 * Return the number of bytes in the log since the last truncate().
+	 */
+	public synchronized long size() {
+		return endLSN - baseLSN;
+	}
+
+	/**
+	 * Return the number of times the log file was forced.
+	 */
+	public synchronized long getForces() {
+		return forces;
+	}
+
+	/**
+	 * Make sure the log is on disk up to the given LSN.  Records that
+	 * other threads have appended are flushed with it.
+	 * @param lsn
+	 */
+	public void flush(long lsn) {
+		ByteBuffer toWrite;
+		long start, end;
+		boolean doForce;
+		synchronized (this) {
+			while (durableLSN < lsn && flushing) {
+				waitForFlush();
+			}
+			if (durableLSN >= lsn) {
+				return;
+			}
+			checkFailed();
+			// this thread flushes everything appended so far
+			flushing = true;
+			toWrite = buffer;
+			buffer = spare;
+			spare = null;
+			start = writtenLSN;
+			end = endLSN;
+			doForce = force;
+		}
+		boolean done = false;
+		try {
+			toWrite.flip();
+			writeFully(toWrite, start);
+			if (doForce) {
+				fc.force(false);
+			}
+			done = true;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't force log file to disk");
+		} finally {
+			synchronized (this) {
+				toWrite.clear();
+				spare = (toWrite.capacity() == bufferSize) ? toWrite : ByteBuffer.allocate(bufferSize);
+				if (done) {
+					writtenLSN = end;
+					durableLSN = end;
+					if (doForce) {
+						forces++;
+					}
+				} else {
+					failed = true;
+				}
+				flushing = false;
+				notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Pass the records in the log to redo, in order.  A torn record at
+	 * the end of the log, left by a crash, is removed.  Return the number
+	 * of records passed.
+	 * @param redo
+	 * @return
+	 */
+	public synchronized int replay(Redo redo) {
+		int count = 0;
+		try {
+			long size = fc.size();
+			long pos = 0;
+			ByteBuffer header = ByteBuffer.allocate(headerSize);
+			while (pos + headerSize <= size) {
+				header.clear();
+				readFully(header, pos);
+				int bodyLen = header.getInt(0);
+				int crcValue = header.getInt(Integer.BYTES);
+				if (bodyLen < bodyHeaderSize || pos + headerSize + bodyLen > size) {
+					break;
+				}
+				ByteBuffer body = ByteBuffer.allocate(bodyLen);
+				readFully(body, pos + headerSize);
+				CRC32 crc = new CRC32();
+				crc.update(body.array(), 0, bodyLen);
+				if ((int)crc.getValue() != crcValue) {
+					break;
+				}
+				byte type = body.get(0);
+				long blockNum = body.getLong(1);
+				int slot = body.getInt(1 + Long.BYTES);
+				byte[] data = new byte[bodyLen - bodyHeaderSize];
+				System.arraycopy(body.array(), bodyHeaderSize, data, 0, data.length);
+				redo.redo(type, blockNum, slot, data);
+				count++;
+				pos += headerSize + bodyLen;
+			}
+			if (pos < size) {
+				fc.truncate(pos);
+			}
+			baseLSN = 0;
+			writtenLSN = durableLSN = endLSN = pos;
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't read log file");
+		}
+		return count;
+	}
+
+	/**
+	 * Remove all records from the log.  This is done after a checkpoint,
+	 * when every block the log describes has been written back to the
+	 * database file.
+	 */
+	public synchronized void truncate() {
+		while (flushing) {
+			waitForFlush();
+		}
+		try {
+			fc.truncate(0);
+			fc.force(true);
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't truncate log file");
+		}
+		buffer.clear();
+		baseLSN = writtenLSN = durableLSN = endLSN;
+	}
+
+	/**
+	 * Close the log.  Records that were not flushed are lost.
+	 */
+	public void close() {
+		ScheduledExecutorService f;
+		synchronized (this) {
+			f = flusher;
+			flusher = null;
+		}
+		if (f != null) {
+			f.shutdown();
+			try {
+				f.awaitTermination(Long.MAX_VALUE, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		synchronized (this) {
+			while (flushing) {
+				waitForFlush();
+			}
+			try {
+				fc.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// write all of buf to the file, at the position of the given LSN
+	private void writeFully(ByteBuffer buf, long lsn) {
+		try {
+			long position = lsn - baseLSN;
+			while (buf.hasRemaining()) {
+				position += fc.write(buf, position);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			throw new IllegalStateException("Error: can't write log file");
+		}
+	}
+
+	// fill buf from the file, starting at the given file position
+	private void readFully(ByteBuffer buf, long position) throws IOException {
+		while (buf.hasRemaining()) {
+			int n = fc.read(buf, position);
+			if (n < 0) {
+				throw new IOException("unexpected end of log file");
+			}
+			position += n;
+		}
+	}
+
+	// throw if a write or force of the log file has failed
+	private void checkFailed() {
+		if (failed) {
+			throw new IllegalStateException("Error: log file failed; the database must be reopened");
+		}
+	}
+
+	// wait for the flushing thread to finish
+	private void waitForFlush() {
+		try {
+			wait();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for the log to be flushed");
+		}
+	}
+}
@@ -0,0 +1,143 @@
+package disk_store;
+
+import java.util.Arrays;
+
+/**
+ * A summary of the data blocks of a heap file: for each block and field,
+ * the least and the greatest value of the field among the records of
+ * the block.  A scan for a value, or a range of values, can skip the
+ * blocks whose summary shows they can't hold a match.
+ *
+ * Blocks are numbered from 0 in the order of the block directory (see
+ * BlockDirectory.indexOf), and fields by their number in the schema.
+ * A summary may be wider than the values in its block, as long as it
+ * covers all of them.  A block that has not been summarized is taken to
+ * hold no records.
+ *
+ */
+
+/* Implementation notes:
+ *  - mins[i*numFields + f] and maxs[i*numFields + f] summarize field f
+ *    of block i.  A block with no values has min Integer.MAX_VALUE and
+ *    max Integer.MIN_VALUE, so no range overlaps it.
+ *  - File layout: int file type, int version, int numFields, int
+ *    numBlocks, then the min and max of each field of each block.
+ */
+
+final class ZoneMap {
+
+	private static final int zoneFileVersion = 1;
+
+	private final int numFields;
+	private int numBlocks;           // blocks summarized so far
+	private int[] mins;
+	private int[] maxs;
+
+	/**
+	 * Create an empty summary of blocks with the given number of fields.
+	 * @param numFields
+	 */
+	ZoneMap(int numFields) {
+		this.numFields = numFields;
+		mins = new int[0];
+		maxs = new int[0];
+	}
+
+	// make room for block i
+	private void ensure(int i) {
+		if (i < numBlocks) {
+			return;
+		}
+		int capacity = mins.length / numFields;
+		if (i >= capacity) {
+			capacity = Math.max(2 * capacity, Math.max(i + 1, 64));
+			int oldLength = mins.length;
+			mins = Arrays.copyOf(mins, capacity * numFields);
+			maxs = Arrays.copyOf(maxs, capacity * numFields);
+			Arrays.fill(mins, oldLength, mins.length, Integer.MAX_VALUE);
+			Arrays.fill(maxs, oldLength, maxs.length, Integer.MIN_VALUE);
+		}
+		numBlocks = i + 1;
+	}
+
+	/**
+	 * Widen the summary of field f of block i to cover value.
+	 */
+	void include(int i, int f, int value) {
+		ensure(i);
+		int k = i * numFields + f;
+		if (value < mins[k]) {
+			mins[k] = value;
+		}
+		if (value > maxs[k]) {
+			maxs[k] = value;
+		}
+	}
+
+	/**
+	 * Forget the summary of block i, so that it covers no values.
+	 */
+	void clear(int i) {
+		if (i < numBlocks) {
+			Arrays.fill(mins, i * numFields, (i + 1) * numFields, Integer.MAX_VALUE);
+			Arrays.fill(maxs, i * numFields, (i + 1) * numFields, Integer.MIN_VALUE);
+		}
+	}
+
+	/**
+	 * Return true if value is the least or greatest value of field f in
+	 * block i, so that the summary may narrow if it is removed.
+	 */
+	boolean isBound(int i, int f, int value) {
+		if (i >= numBlocks) {
+			return false;
+		}
+		int k = i * numFields + f;
+		return value == mins[k] || value == maxs[k];
+	}
+
+	/**
+	 * Return true if block i may hold a record whose field f is between
+	 * lo and hi, inclusive.
+	 */
+	boolean mayContain(int i, int f, int lo, int hi) {
+		if (i < 0 || i >= numBlocks) {
+			return false;
+		}
+		int k = i * numFields + f;
+		return mins[k] <= hi && maxs[k] >= lo;
+	}
+
+	/**
+	 * Write the summary to the given file, replacing it, and force the
+	 * file to disk.
+	 */
+	void save(String filename) {
+		SideFile.write(filename, SideFile.zoneMap, zoneFileVersion, "zone map", out -> {
+			out.writeInt(numFields);
+			out.writeInt(numBlocks);
+			for (int k = 0; k < numBlocks * numFields; k++) {
+				out.writeInt(mins[k]);
+				out.writeInt(maxs[k]);
+			}
+		});
+	}
+
+	/**
+	 * Read a summary from the given file.
+	 */
+	static ZoneMap load(String filename) {
+		return SideFile.read(filename, SideFile.zoneMap, zoneFileVersion, "zone map", in -> {
+			ZoneMap zones = new ZoneMap(in.readInt());
+			int n = in.readInt();
+			if (n > 0) {
+				zones.ensure(n - 1);
+			}
+			for (int k = 0; k < n * zones.numFields; k++) {
+				zones.mins[k] = in.readInt();
+				zones.maxs[k] = in.readInt();
+			}
+			return zones;
+		});
+	}
+}
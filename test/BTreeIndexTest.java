@@ -0,0 +1,146 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.BTreeIndex;
+
+class BTreeIndexTest {
+
+	static final String filename = "btreeindextest.idx";
+
+	BTreeIndex idx;
+
+	@BeforeEach
+	void init() {
+		// a small pool, so that pages are written back and read again
+		idx = BTreeIndex.create(filename, 16);
+		idx.insert(1, 1);
+		idx.insert(1, 2);
+		idx.insert(2, 3);
+		idx.insert(2, 1);
+		idx.insert(2, 2);
+		idx.insert(3, 1);
+		idx.insert(4, 2);
+	}
+
+	@AfterEach
+	void cleanup() {
+		idx.close();
+		new File(filename).delete();
+	}
+
+	@Test
+	void testLookup() {
+		assertEquals(Arrays.asList(1L,2L), idx.lookup(1));
+		assertEquals(Arrays.asList(1L,2L,3L), idx.lookup(2));
+		assertEquals(0, idx.lookup(6).size());
+
+		idx.insert(2, 1);
+		idx.delete(2, 1);
+		assertEquals(Arrays.asList(1L,2L,3L), idx.lookup(2));
+		idx.delete(2, 1);
+		assertEquals(Arrays.asList(2L,3L), idx.lookup(2));
+		assertEquals(6, idx.size());
+
+		List<Long> range = new ArrayList<Long>();
+		idx.rangeIterator(2, 3).forEachRemaining(range::add);
+		assertEquals(Arrays.asList(2L,3L,1L), range);
+	}
+
+	@Test
+	void testManyEntries() {
+		// enough entries for three levels, then enough deletes to merge
+		// nodes, checked against a map from each key to its block numbers
+		TreeMap<Integer, List<Long>> expected = new TreeMap<Integer, List<Long>>();
+		for (int key = 1; key <= 4; key++) {
+			expected.put(key, new ArrayList<Long>(idx.lookup(key)));
+		}
+		expected.get(2).add(0, 1L);
+		Random rand = new Random(42);
+		long size = idx.size();
+		for (int i = 0; i < 300000; i++) {
+			int key = rand.nextInt(100000);
+			long blockNum = rand.nextInt(4);
+			List<Long> blocks = expected.computeIfAbsent(key, k -> new ArrayList<Long>());
+			boolean delete = (i < 150000) ? rand.nextInt(4) == 0 : rand.nextInt(4) != 0;
+			if (delete) {
+				idx.delete(key, blockNum);
+				if (blocks.remove(blockNum)) {
+					size--;
+				}
+			} else {
+				idx.insert(key, blockNum);
+				blocks.add(blockNum);
+				size++;
+			}
+			if (i == 150000) {
+				checkAll(expected, size);
+			}
+		}
+		checkAll(expected, size);
+
+		// the index is the same after it is closed and opened again
+		idx.close();
+		idx = BTreeIndex.open(filename, 16);
+		checkAll(expected, size);
+	}
+
+	// check every key from -1 to 100000, and one range
+	private void checkAll(TreeMap<Integer, List<Long>> expected, long size) {
+		assertEquals(size, idx.size());
+		long[] dest = new long[4];
+		for (int key = -1; key <= 100000; key++) {
+			List<Long> blocks = expected.getOrDefault(key, new ArrayList<Long>());
+			List<Long> distinct = new ArrayList<Long>(new TreeSet<Long>(blocks));
+			assertEquals(distinct, idx.lookup(key));
+			assertEquals(distinct.size(), idx.lookup(key, dest));
+		}
+		List<Long> range = new ArrayList<Long>();
+		idx.rangeIterator(5000, 5999).forEachRemaining(range::add);
+		int rangeSize = 0;
+		for (List<Long> blocks : expected.subMap(5000, 6000).values()) {
+			rangeSize += blocks.size();
+		}
+		assertEquals(rangeSize, range.size());
+	}
+
+	@Test
+	void testBulkBuild() {
+		// insertAll into an empty index builds it bottom up
+		idx.close();
+		idx = BTreeIndex.create(filename, 16);
+		int n = 200000;
+		int[] keys = new int[n];
+		long[] blockNums = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = (n - i) / 2;
+			blockNums[i] = i % 2;
+		}
+		idx.insertAll(keys, blockNums, n);
+		assertEquals(n, idx.size());
+		assertEquals(Arrays.asList(0L,1L), idx.lookup(1234));
+
+		// then inserts and deletes on the built tree
+		for (int i = 0; i < n; i += 2) {
+			idx.delete(keys[i], blockNums[i]);
+		}
+		idx.insert(1234, 7);
+		assertEquals(Arrays.asList(1L,7L), idx.lookup(1234));
+		assertEquals(n/2 + 1, idx.size());
+		List<Long> range = new ArrayList<Long>();
+		idx.rangeIterator(10, 19).forEachRemaining(range::add);
+		assertEquals(10, range.size());
+	}
+}
@@ -0,0 +1,96 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.BlockDirectory;
+import disk_store.BlockedFile;
+import disk_store.BufferPool;
+
+class BlockDirectoryTest {
+
+	static final String filename = "blockdirectorytest.dat";
+
+	BlockedFile bf;
+	BufferPool pool;
+	BlockDirectory dir;
+	long[] blocks;
+
+	@BeforeEach
+	void init() {
+		new File(filename).delete();
+		bf = new BlockedFile(filename);
+		pool = new BufferPool(bf, 8);
+		dir = new BlockDirectory(pool, 1, bf.blockSize());
+		dir.create();
+
+		// allocate enough blocks to span two extents, and fill them all
+		blocks = new long[bf.blockSize() + 100];
+		for (int i = 0; i < blocks.length; i++) {
+			blocks[i] = dir.allocate();
+			dir.set(blocks[i], 10, 0);
+		}
+	}
+
+	@AfterEach
+	void cleanup() {
+		bf.close();
+		new File(filename).delete();
+	}
+
+	@Test
+	void testAllocate() {
+		assertEquals(blocks.length, dir.numBlocks());
+		for (int i = 1; i < blocks.length; i++) {
+			assertTrue(blocks[i] > blocks[i-1]);
+			assertTrue(dir.isValid(blocks[i]));
+		}
+		// the directory page of the second extent is not a data block
+		int i = bf.blockSize();
+		assertEquals(blocks[i-1] + 2, blocks[i]);
+		assertFalse(dir.isValid(blocks[i] - 1));
+		assertEquals(-1, dir.findBlock(1));
+	}
+
+	@Test
+	void testFindBlock() {
+		dir.set(blocks[4150], 9, 1);
+		assertEquals(blocks[4150], dir.findBlock(1));
+		assertEquals(-1, dir.findBlock(2));
+		dir.set(blocks[7], 0, 10);
+		assertEquals(blocks[7], dir.findBlock(2));
+		dir.set(blocks[7], 10, 0);
+		dir.set(blocks[4150], 10, 0);
+		assertEquals(-1, dir.findBlock(1));
+	}
+
+	@Test
+	void testNextNonEmpty() {
+		// empty out the whole first extent except for one block
+		for (int i = 0; i < bf.blockSize(); i++) {
+			dir.set(blocks[i], 0, 10);
+		}
+		dir.set(blocks[100], 1, 9);
+		assertEquals(blocks[100], dir.nextNonEmpty(0));
+		assertEquals(blocks[bf.blockSize()], dir.nextNonEmpty(blocks[100] + 1));
+		assertEquals(-1, dir.nextNonEmpty(blocks[blocks.length-1] + 1));
+	}
+
+	@Test
+	void testReload() {
+		dir.set(blocks[4150], 3, 7);
+		dir.close();
+		pool.close();
+
+		dir = new BlockDirectory(pool, 1, bf.blockSize());
+		dir.load();
+		assertEquals(blocks.length, dir.numBlocks());
+		assertEquals(blocks[4150], dir.findBlock(1));
+		assertEquals(blocks[blocks.length-1] + 1, dir.allocate());
+	}
+}
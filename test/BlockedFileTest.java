@@ -0,0 +1,79 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.BlockBuffer;
+import disk_store.BlockedFile;
+
+class BlockedFileTest {
+
+	static final String filename = "blockedfiletest.dat";
+
+	// a block whose byte offset does not fit in an int
+	static final long farBlock = 600000L;
+
+	@AfterEach
+	void cleanup() {
+		new File(filename).delete();
+	}
+
+	// write blocks 0 and farBlock, then read them back after reopening
+	void readWriteFar(boolean mapped) {
+		new File(filename).delete();
+		BlockedFile bf = new BlockedFile(filename, mapped);
+		BlockBuffer buf = bf.getBuffer();
+		buf.putInt(0, 1);
+		bf.write(0, buf);
+		buf.putInt(0, 2);
+		bf.write(farBlock, buf);
+		assertEquals(farBlock, bf.getLastBlockIndex());
+		bf.close();
+
+		// the file is sparse, but has the full logical size
+		assertEquals((farBlock + 1) * bf.blockSize(), new File(filename).length());
+
+		bf = BlockedFile.open(filename, mapped);
+		assertEquals(farBlock, bf.getLastBlockIndex());
+		bf.read(farBlock, buf);
+		assertEquals(2, buf.getInt(0));
+		bf.read(0, buf);
+		assertEquals(1, buf.getInt(0));
+		bf.close();
+	}
+
+	@Test
+	void testFarBlock() {
+		readWriteFar(false);
+	}
+
+	@Test
+	void testFarBlockMapped() {
+		readWriteFar(true);
+	}
+
+	@Test
+	void testMappedPaddingTrimmed() {
+		// a mapped file that was not closed is padded to a whole chunk,
+		// and open() trims the padding
+		new File(filename).delete();
+		BlockedFile bf = new BlockedFile(filename, true);
+		BlockBuffer buf = bf.getBuffer();
+		buf.putInt(0, 7);
+		bf.write(5, buf);
+		bf.force();
+		assertTrue(new File(filename).length() > 6 * bf.blockSize());
+
+		BlockedFile reopened = BlockedFile.open(filename, false);
+		assertEquals(5, reopened.getLastBlockIndex());
+		assertEquals(6 * bf.blockSize(), reopened.size());
+		reopened.read(5, buf);
+		assertEquals(7, buf.getInt(0));
+		reopened.close();
+		bf.close();
+	}
+}
@@ -0,0 +1,157 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.BlockBuffer;
+import disk_store.BlockedFile;
+import disk_store.BufferPool;
+
+class BufferPoolTest {
+
+	static final String filename = "bufferpooltest.dat";
+
+	BlockedFile bf;
+	BufferPool pool;
+
+	@BeforeEach
+	void init() {
+		new File(filename).delete();
+		bf = new BlockedFile(filename);
+		pool = new BufferPool(bf, 2);
+	}
+
+	@AfterEach
+	void cleanup() {
+		bf.close();
+		new File(filename).delete();
+	}
+
+	@Test
+	void testHitsAndMisses() {
+		pool.pinNew(0);
+		pool.unpin(0, true);
+		pool.pin(0);
+		pool.unpin(0, false);
+		assertEquals(1, pool.getHits());
+		assertEquals(0, pool.getMisses());
+
+		// nothing is written until the block is evicted or flushed
+		assertEquals(0, pool.getBlockWrites());
+		pool.flush();
+		assertEquals(1, pool.getBlockWrites());
+	}
+
+	@Test
+	void testEvictionWritesBack() {
+		// fill 3 blocks through a 2-frame pool
+		for (int b = 0; b < 3; b++) {
+			BlockBuffer buf = pool.pinNew(b);
+			buf.putInt(0, b + 100);
+			pool.unpin(b, true);
+		}
+		assertTrue(pool.getBlockWrites() >= 1);
+
+		// every block must come back with its value
+		for (int b = 0; b < 3; b++) {
+			BlockBuffer buf = pool.pin(b);
+			assertEquals(b + 100, buf.getInt(0));
+			pool.unpin(b, false);
+		}
+	}
+
+	@Test
+	void testAllPinned() {
+		pool.pinNew(0);
+		pool.pinNew(1);
+		assertThrows(IllegalStateException.class, () -> pool.pin(2));
+		pool.unpin(1, true);
+		pool.pin(2);
+		pool.unpin(2, false);
+		pool.unpin(0, true);
+	}
+
+	@Test
+	void testPrefetch() {
+		// write 8 blocks directly, then read 4 of them ahead
+		BlockBuffer buf = bf.getBuffer();
+		for (int b = 0; b < 8; b++) {
+			buf.putInt(0, b + 100);
+			bf.write(b, buf);
+		}
+		pool = new BufferPool(bf, 16);
+		pool.prefetch(new long[] {2, 3, 4, 6}, 4);
+		assertEquals(4, pool.getPrefetches());
+
+		// the prefetched blocks are found in the pool
+		for (int b = 2; b <= 6; b++) {
+			buf = pool.pin(b);
+			assertEquals(b + 100, buf.getInt(0));
+			pool.unpin(b, false);
+		}
+		assertEquals(1, pool.getMisses());
+		assertEquals(4, pool.getPrefetchHits());
+
+		// blocks already in the pool are not read again
+		pool.prefetch(new long[] {5, 6, 7}, 3);
+		assertEquals(5, pool.getPrefetches());
+	}
+
+	@Test
+	void testFailedRead() {
+		// a read that fails throws, and leaves no frame pinned or loading
+		BlockBuffer buf = pool.pinNew(0);
+		buf.putInt(0, 5);
+		pool.unpin(0, true);
+		pool.flush();
+		bf.close();
+		assertThrows(IllegalStateException.class, () -> pool.pin(2));
+		assertThrows(IllegalStateException.class, () -> pool.pin(2));
+		pool.pinNew(2);
+		pool.pinNew(3);
+		pool.unpin(2, false);
+		pool.unpin(3, false);
+	}
+
+	@Test
+	void testConcurrentWriteBack() throws InterruptedException {
+		// threads change their own blocks through a small pool, so that
+		// dirty victims are written back while other threads pin blocks
+		int numThreads = 4;
+		int blocksPerThread = 20;
+		pool = new BufferPool(bf, numThreads * 2);
+		Thread[] threads = new Thread[numThreads];
+		for (int t = 0; t < numThreads; t++) {
+			final int first = t * blocksPerThread;
+			threads[t] = new Thread(() -> {
+				for (int b = first; b < first + blocksPerThread; b++) {
+					pool.pinNew(b);
+					pool.unpin(b, true);
+				}
+				for (int round = 0; round < 50; round++) {
+					for (int b = first; b < first + blocksPerThread; b++) {
+						BlockBuffer buf = pool.pin(b);
+						buf.putInt(0, buf.getInt(0) + 1);
+						pool.unpin(b, true);
+					}
+				}
+			});
+		}
+		for (Thread t : threads) {
+			t.start();
+		}
+		for (Thread t : threads) {
+			t.join();
+		}
+		for (int b = 0; b < numThreads * blocksPerThread; b++) {
+			BlockBuffer buf = pool.pin(b);
+			assertEquals(50, buf.getInt(0));
+			pool.unpin(b, false);
+		}
+	}
+}
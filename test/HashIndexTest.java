@@ -0,0 +1,116 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.HashIndex;
+
+class HashIndexTest {
+	
+	HashIndex idx;
+	
+	@BeforeEach
+	void init() {
+		// create the index
+		idx = new HashIndex();
+		
+		// insert some elements
+		idx.insert(1, 1);
+		idx.insert(1, 2);
+		idx.insert(2, 3);
+		idx.insert(2, 1);
+		idx.insert(2, 2);
+		idx.insert(3, 1);
+		idx.insert(4, 2);
+	}
+
+	@Test
+	void testLookup() {
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L)), new TreeSet<Long>(idx.lookup(1)));
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		assertEquals(Arrays.asList(2L), idx.lookup(4));
+		assertEquals(0, idx.lookup(6).size());
+		
+		// values beyond the end of dest are counted but not copied
+		long[] dest = new long[2];
+		assertEquals(3, idx.lookup(2, dest));
+		assertNotEquals(dest[0], dest[1]);
+		assertTrue(Arrays.asList(1L,2L,3L).containsAll(Arrays.asList(dest[0], dest[1])));
+		assertEquals(0, idx.lookup(6, dest));
+	}
+	
+	@Test
+	void testDelete() {
+		idx.insert(2, 1);
+		assertEquals(8, idx.size());
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		
+		idx.delete(2, 1);
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		idx.delete(2, 1);
+		assertEquals(new TreeSet<Long>(Arrays.asList(2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		idx.delete(2, 1);
+		assertEquals(6, idx.size());
+		
+		idx.delete(2, 2);
+		idx.delete(2, 3);
+		idx.delete(4, 2);
+		assertEquals(0, idx.lookup(2).size());
+		assertEquals(0, idx.lookup(4).size());
+		assertEquals(3, idx.size());
+	}
+	
+	@Test
+	void testManyEntries() {
+		// enough random inserts and deletes to grow the table and to move
+		// keys back after deletes, checked against a map
+		idx = new HashIndex();
+		Map<Integer, List<Long>> expected = new HashMap<Integer, List<Long>>();
+		Random rand = new Random(42);
+		int size = 0;
+		for (int i = 0; i < 200000; i++) {
+			int key = rand.nextInt(20000) - 10000;
+			long blockNum = rand.nextInt(4);
+			List<Long> blocks = expected.computeIfAbsent(key, k -> new ArrayList<Long>());
+			if (rand.nextInt(3) == 0) {
+				idx.delete(key, blockNum);
+				if (blocks.remove(blockNum)) {
+					size--;
+				}
+			} else {
+				idx.insert(key, blockNum);
+				blocks.add(blockNum);
+				size++;
+			}
+		}
+		
+		// and a bulk insert on top
+		int n = 10000;
+		int[] keys = new int[n];
+		long[] blockNums = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = rand.nextInt(40000);
+			blockNums[i] = rand.nextInt(4);
+			expected.computeIfAbsent(keys[i], k -> new ArrayList<Long>()).add(blockNums[i]);
+		}
+		idx.insertAll(keys, blockNums, n);
+		assertEquals(size + n, idx.size());
+		
+		for (int key = -10001; key <= 40000; key++) {
+			List<Long> blocks = expected.getOrDefault(key, new ArrayList<Long>());
+			List<Long> result = idx.lookup(key);
+			assertEquals(new TreeSet<Long>(blocks), new TreeSet<Long>(result));
+			assertEquals(new TreeSet<Long>(blocks).size(), result.size());
+		}
+	}
+}
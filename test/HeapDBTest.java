@@ -4,9 +4,13 @@ import static org.junit.jupiter.api.Assertions.*;
 
 import java.io.File;
 import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.collect.Lists;
 
@@ -16,7 +20,9 @@ import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Disabled;
 import org.junit.jupiter.api.Test;
 
+import disk_store.BufferPool;
 import disk_store.DB;
+import disk_store.Durability;
 import disk_store.HeapDB;
 import disk_store.IntField;
 import disk_store.IntType;
@@ -91,6 +97,133 @@ class HeapDBTest {
 		db.close();
 	}
 	
+	@Test
+	void testMappedOps() {
+		// test insert, delete, lookup and reopen with a memory-mapped file
+		
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+		
+		rand = new Random(42);  // set seed for repeatability
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema(), true);
+		db.createHashIndex();
+		int numRecords = 2000;
+		insertRecords(db, numRecords);
+		assertTrue(db.size() == numRecords);
+		
+		db.delete(2);
+		assertTrue(db.lookup(2) == null);
+		assertTrue(db.lookup(3) != null);
+		db.close();
+		
+		// the file must read the same whether or not it is mapped
+		db = HeapDB.open(dbFilename, true);
+		assertTrue(db.size() == numRecords - 1);
+		db.close();
+		db = HeapDB.open(dbFilename);
+		assertTrue(db.size() == numRecords - 1);
+		assertTrue(db.lookup(numRecords) != null);
+		db.close();
+	}
+	
+	@Test
+	void testFreeSpaceReuse() {
+		// slots freed by delete must be reused by insert, also after reopen
+		
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+		
+		rand = new Random(42);  // set seed for repeatability
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 2000;
+		insertRecords(db, numRecords);
+		for (int key = 1; key <= numRecords; key += 2) {
+			assertTrue(db.delete(key));
+		}
+		db.close();
+		long fileSize = new File(dbFilename).length();
+		
+		db = HeapDB.open(dbFilename);
+		for (int key = 1; key <= numRecords; key += 2) {
+			assertTrue(db.insert(createTestRecord(key, 0, 0)));
+		}
+		assertTrue(db.size() == numRecords);
+		db.close();
+		assertEquals(fileSize, new File(dbFilename).length());
+	}
+	
+	@Test
+	void testPrimaryKeyIndex() {
+		// the primary key index is kept without createHashIndex(), and is
+		// rebuilt on open
+		
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+		
+		rand = new Random(42);  // set seed for repeatability
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 1000;
+		insertRecords(db, numRecords);
+		db.close();
+		
+		db = HeapDB.open(dbFilename);
+		assertFalse(db.insert(createTestRecord(5, 0, 0)));
+		
+		// a key lookup pins exactly one block
+		BufferPool pool = db.getBufferPool();
+		long pins = pool.getHits() + pool.getMisses();
+		rec = db.lookup(500);
+		assertEquals(501, ((IntField)rec.get(1)).getValue());
+		assertEquals(pins + 1, pool.getHits() + pool.getMisses());
+		
+		assertTrue(db.delete(500));
+		assertTrue(db.lookup(500) == null);
+		assertTrue(db.insert(createTestRecord(500, 0, 0)));
+		db.close();
+	}
+	
+	@Test
+	void testBulkLoad() {
+		// bulk load with duplicate keys, then check indexes and lookups
+		
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+		
+		rand = new Random(42);  // set seed for repeatability
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("c");
+		db.insert(createTestRecord(7, 0, 3));
+		
+		// keys 1..numRecords, with every key divisible by 10 repeated
+		int numRecords = 10000;
+		List<Record> recs = Lists.newArrayList();
+		int numC3 = 1;
+		for (int key = 1; key <= numRecords; key++) {
+			int c = rand.nextInt(20);
+			recs.add(createTestRecord(key, key+1, c));
+			if (c == 3 && key != 7) {
+				numC3++;
+			}
+			if (key % 10 == 0) {
+				recs.add(createTestRecord(key, 0, 3));
+			}
+		}
+		assertEquals(numRecords - 1, db.bulkLoad(recs.iterator()));
+		assertTrue(db.size() == numRecords);
+		assertFalse(db.insert(createTestRecord(numRecords, 0, 0)));
+		assertEquals(0, ((IntField)db.lookup(7).get(1)).getValue());
+		assertEquals(11, ((IntField)db.lookup(10).get(1)).getValue());
+		assertEquals(numC3, db.lookup("c", 3).size());
+		
+		db.deleteIndex("c");
+		assertEquals(numC3, db.lookup("c", 3).size());
+		db.close();
+	}
+	
 	@Test
 	void testLookupTime() {
 		// compare time to lookup records with/without an index
@@ -137,6 +270,734 @@ class HeapDBTest {
 		db.close();
 	}
 	
+	@Test
+	void testConcurrentLookups() throws InterruptedException {
+		// run point lookups from several threads at once, and report
+		// the throughput for each number of threads
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		// a small buffer pool, so that lookups also read blocks
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema(), false, 32);
+		int numRecords = 20000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 7));
+		}
+		db.bulkLoad(recs.iterator());
+
+		int lookupsPerThread = 20000;
+		for (int numThreads = 1; numThreads <= 8; numThreads *= 2) {
+			int[] notFound = new int[numThreads];
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				final int id = t;
+				threads[t] = new Thread(() -> {
+					Random r = new Random(id);
+					for (int i = 0; i < lookupsPerThread; i++) {
+						int key = r.nextInt(numRecords) + 1;
+						Record found = db.lookup(key);
+						if (found == null || ((IntField)found.get(1)).getValue() != key+1) {
+							notFound[id]++;
+						}
+					}
+				});
+			}
+			long startTime = System.nanoTime();
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			long endTime = System.nanoTime();
+			for (int t = 0; t < numThreads; t++) {
+				assertEquals(0, notFound[t]);
+			}
+			double seconds = (endTime - startTime) / 1e9;
+			System.out.println(numThreads+" threads: "+(long)(numThreads*lookupsPerThread/seconds)+" lookups/s");
+		}
+		db.close();
+	}
+
+	@Test
+	void testInterleavedScans() {
+		// an outer scan that runs inner scans and lookups must still see
+		// every record once, with its own values
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 3000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 7));
+		}
+		db.bulkLoad(recs.iterator());
+
+		BufferPool pool = db.getBufferPool();
+		long misses = pool.getMisses();
+		long keySum = 0;
+		int count = 0;
+		Iterator<Record> outer = db.iterator();
+		while (outer.hasNext()) {
+			Record r = outer.next();
+			int key = ((IntField)r.get(0)).getValue();
+			assertEquals(key+1, ((IntField)r.get(1)).getValue());
+			keySum += key;
+			count++;
+			if (key % 500 == 0) {
+				// a nested scan, partly consumed, and a lookup of another key
+				Iterator<Record> inner = db.iterator();
+				for (int i = 0; i < 1000 && inner.hasNext(); i++) {
+					inner.next();
+				}
+				assertTrue(db.lookup(numRecords + 1 - key) != null);
+			}
+		}
+		assertEquals(numRecords, count);
+		assertEquals((long)numRecords*(numRecords+1)/2, keySum);
+
+		// every block was already cached, so nothing was read again
+		assertEquals(misses, pool.getMisses());
+		db.close();
+	}
+	
+	@Test
+	void testReadAhead() {
+		// time full scans with and without read-ahead, through a pool
+		// that is much smaller than the database
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 200000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 7));
+		}
+		db.bulkLoad(recs.iterator());
+		db.close();
+
+		for (int window : new int[] {0, 16}) {
+			db = HeapDB.open(dbFilename, false, 64);
+			db.setReadAheadWindow(window);
+			BufferPool pool = db.getBufferPool();
+			long startTime = System.nanoTime();
+			assertEquals(numRecords, db.size());
+			long endTime = System.nanoTime();
+			
+			// a scan that does some work per record, so that the reads can
+			// stay ahead of it; opening the database and the scan above
+			// also read ahead, so only count what this scan does
+			long prefetches = pool.getPrefetches();
+			long prefetchHits = pool.getPrefetchHits();
+			int count = 0;
+			for (Record r : db) {
+				if (++count % 2000 == 0) {
+					try {
+						Thread.sleep(1);
+					} catch (InterruptedException e) {
+						break;
+					}
+				}
+			}
+			prefetches = pool.getPrefetches() - prefetches;
+			prefetchHits = pool.getPrefetchHits() - prefetchHits;
+			System.out.println("scan with read-ahead window "+window+": "+(endTime - startTime)/1000000.0+" ms, "
+					+prefetchHits+" of "+prefetches+" prefetched blocks used");
+			if (window == 0) {
+				assertEquals(0, prefetches);
+			} else {
+				assertTrue(prefetchHits > 0);
+			}
+			db.close();
+		}
+	}
+	
+	@Test
+	void testRecovery() {
+		// changes that reached the log must survive a crash, in which the
+		// database is never closed and its blocks are never written back
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema(), false, 1024);
+		db.setDurability(Durability.OPERATION);
+		long blockWrites = db.getBufferPool().getBlockWrites();
+		int numRecords = 3000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, 0));
+		}
+		db.bulkLoad(recs.iterator());
+		for (int key = numRecords+1; key <= numRecords+500; key++) {
+			assertTrue(db.insert(createTestRecord(key, key+1, 0)));
+		}
+		int numDeleted = 0;
+		for (int key = 7; key <= numRecords+500; key += 7) {
+			assertTrue(db.delete(key));
+			numDeleted++;
+		}
+		assertEquals(blockWrites, db.getBufferPool().getBlockWrites());
+
+		// "crash": open the database again without closing db
+		HeapDB recovered = HeapDB.open(dbFilename);
+		assertEquals(numRecords+500-numDeleted, recovered.size());
+		assertTrue(recovered.lookup(7) == null);
+		assertEquals(numRecords+500, ((IntField)recovered.lookup(numRecords+499).get(1)).getValue());
+		assertTrue(recovered.insert(createTestRecord(7, 0, 0)));
+		recovered.close();
+
+		// after a clean close, the log is empty
+		assertEquals(0, new File(dbFilename+".wal").length());
+		recovered = HeapDB.open(dbFilename);
+		assertEquals(numRecords+501-numDeleted, recovered.size());
+		recovered.close();
+	}
+	
+	@Test
+	void testModify() {
+		// modify in place, with indexes on some fields
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		rand = new Random(42);  // set seed for repeatability
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("c");
+		int numRecords = 2000;
+		insertRecords(db, numRecords);
+		int numC = db.lookup("c", 25).size();
+		assertEquals(0, numC);
+
+		// a modify reads and writes only the record's block
+		BufferPool pool = db.getBufferPool();
+		long pins = pool.getHits() + pool.getMisses();
+		assertTrue(db.modify(createTestRecord(100, 7, 25)));
+		assertEquals(pins + 1, pool.getHits() + pool.getMisses());
+		assertEquals(7, ((IntField)db.lookup(100).get(1)).getValue());
+		assertEquals(1, db.lookup("c", 25).size());
+
+		// only the changed field's index entry moves
+		assertTrue(db.modify(createTestRecord(100, 8, 25)));
+		assertEquals(1, db.lookup("c", 25).size());
+		assertEquals(2, db.lookup("b", 8).size());
+		assertTrue(db.modify(createTestRecord(100, 8, 26)));
+		assertEquals(0, db.lookup("c", 25).size());
+		assertEquals(1, db.lookup("c", 26).size());
+
+		assertFalse(db.modify(createTestRecord(numRecords+1, 0, 0)));
+		assertTrue(db.size() == numRecords);
+		db.close();
+
+		db = HeapDB.open(dbFilename);
+		assertEquals(26, ((IntField)db.lookup(100).get(2)).getValue());
+		db.close();
+	}
+	
+	@Test
+	void testDeleteWithIndexes() {
+		// delete must remove exactly the deleted record's index entries
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("b");
+		db.createHashIndex("c");
+		int numRecords = 2000;
+		for (int key = 1; key <= numRecords; key++) {
+			db.insert(createTestRecord(key, key % 100, key % 3));
+		}
+
+		// a delete pins only the record's block and its directory page
+		BufferPool pool = db.getBufferPool();
+		long pins = pool.getHits() + pool.getMisses();
+		assertTrue(db.delete(5));
+		assertEquals(pins + 2, pool.getHits() + pool.getMisses());
+		assertFalse(db.delete(5));
+
+		// key 5 has b = 5 and c = 2; there were 20 records with b = 5
+		// and 667 with c = 2
+		assertEquals(19, db.lookup("b", 5).size());
+		assertEquals(666, db.lookup("c", 2).size());
+		assertEquals(20, db.lookup("b", 2).size());
+		assertEquals(666, db.lookup("c", 0).size());
+		db.close();
+	}
+	
+	@Test
+	void testRecordIdLookups() {
+		// point lookups through record IDs and through block numbers must
+		// find the same records; print the time for each
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("c");
+		int numRecords = 50000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key / 10));
+		}
+		db.bulkLoad(recs.iterator());
+
+		int numLookups = 100000;
+		for (boolean recordIds : new boolean[] {false, true}) {
+			db.setRecordIdIndexes(recordIds);
+			rand = new Random(42);
+			long startTime = System.nanoTime();
+			for (int i = 0; i < numLookups; i++) {
+				int key = rand.nextInt(numRecords) + 1;
+				assertEquals(key+1, ((IntField)db.lookup(key).get(1)).getValue());
+			}
+			long endTime = System.nanoTime();
+			System.out.println((recordIds ? "record ID" : "block number")+" lookups: "+(endTime - startTime)/1000000.0+" ms");
+			assertEquals(10, db.lookup("c", 123).size());
+
+			// updates find their records through the same pointers
+			assertTrue(db.modify(createTestRecord(1235, 0, 500)));
+			assertEquals(9, db.lookup("c", 123).size());
+			assertTrue(db.delete(1235));
+			assertTrue(db.insert(createTestRecord(1235, 1236, 123)));
+			assertEquals(10, db.lookup("c", 123).size());
+		}
+		db.close();
+	}
+	
+	@Test
+	void testLookupRange() {
+		// range lookups through an ordered index, with record IDs and with
+		// block numbers, must find the same records as a filtered scan
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 5000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key % 7, key / 10));
+		}
+		db.bulkLoad(recs.iterator());
+
+		// no ordered index: filtered scan, also with the hash index on the key
+		assertEquals(100, db.lookupRange("c", 100, 109).size());
+		db.createHashIndex("c");
+		assertEquals(100, db.lookupRange("c", 100, 109).size());
+		db.deleteIndex("c");
+
+		db.createOrderedIndex("c");
+		for (boolean recordIds : new boolean[] {true, false}) {
+			db.setRecordIdIndexes(recordIds);
+			List<Record> result = db.lookupRange("c", 100, 109);
+			assertEquals(100, result.size());
+			for (Record r : result) {
+				int c = ((IntField)r.get(2)).getValue();
+				assertTrue(100 <= c && c <= 109);
+			}
+			assertEquals(9, db.lookupRange("c", 0, 0).size());
+			assertEquals(1, db.lookupRange("c", 500, 1000).size());
+			assertEquals(0, db.lookupRange("c", 501, 1000).size());
+			assertEquals(0, db.lookupRange("c", 109, 100).size());
+			assertEquals(numRecords, db.lookupRange("a", Integer.MIN_VALUE, Integer.MAX_VALUE).size());
+		}
+		db.close();
+	}
+	
+	@Test
+	void testLookupAll() {
+		// a batched lookup must find the same records as one lookup per
+		// key; print the time for each
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createHashIndex("c");
+		int numRecords = 50000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 1000));
+		}
+		db.bulkLoad(recs.iterator());
+
+		// a batch of keys, with duplicates and keys that aren't present
+		rand = new Random(42);
+		int[] keys = new int[500];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = rand.nextInt(numRecords + 1000);
+		}
+		for (boolean recordIds : new boolean[] {true, false}) {
+			db.setRecordIdIndexes(recordIds);
+			long startTime = System.nanoTime();
+			Set<Integer> expected = new HashSet<Integer>();
+			for (int key : keys) {
+				Record r = db.lookup(key);
+				if (r != null) {
+					expected.add(r.getKey());
+				}
+			}
+			long midTime = System.nanoTime();
+			List<Record> result = db.lookupAll("a", keys);
+			long endTime = System.nanoTime();
+			System.out.println((recordIds ? "record ID" : "block number")+" lookups of "+keys.length+" keys: "+
+					(midTime - startTime)/1000000.0+" ms one at a time, "+(endTime - midTime)/1000000.0+" ms batched");
+			assertEquals(expected.size(), result.size());
+			for (Record r : result) {
+				assertTrue(expected.contains(r.getKey()));
+			}
+		}
+
+		// non-key field, through the hash index and through a scan
+		assertEquals(100, db.lookupAll("c", new int[] {7, 3, 7, 2000}).size());
+		db.deleteIndex("c");
+		assertEquals(100, db.lookupAll("c", new int[] {7, 3, 7, 2000}).size());
+		assertEquals(0, db.lookupAll("c", new int[0]).size());
+		db.close();
+	}
+	
+	@Test
+	void testDiskIndexes() {
+		// on-disk indexes must give the same answers as in-memory ones,
+		// through updates, and their files go away with the index
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+		String indexFilename = dbFilename + ".c.btree";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createBTreeIndex("c");
+		int numRecords = 20000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 500));
+		}
+		db.bulkLoad(recs.iterator());
+		assertTrue(new File(indexFilename).exists());
+
+		for (boolean recordIds : new boolean[] {true, false}) {
+			db.setRecordIdIndexes(recordIds);
+			assertEquals(40, db.lookup("c", 7).size());
+			assertEquals(400, db.lookupRange("c", 10, 19).size());
+			assertTrue(db.modify(createTestRecord(7, 8, 8)));
+			assertTrue(db.delete(507));
+			assertEquals(38, db.lookup("c", 7).size());
+			assertEquals(41, db.lookup("c", 8).size());
+			assertTrue(db.insert(createTestRecord(507, 508, 7)));
+			assertTrue(db.modify(createTestRecord(7, 8, 7)));
+			assertEquals(40, db.lookup("c", 7).size());
+		}
+
+		// replacing the index removes its file
+		db.createOrderedIndex("c");
+		assertFalse(new File(indexFilename).exists());
+		assertEquals(40, db.lookup("c", 7).size());
+		db.createBTreeIndex("c");
+		db.deleteIndex("c");
+		assertFalse(new File(indexFilename).exists());
+
+		// the same through a linear hash index
+		String hashFilename = dbFilename + ".c.lhash";
+		db.createLinearHashIndex("c");
+		assertTrue(new File(hashFilename).exists());
+		for (boolean recordIds : new boolean[] {false, true}) {
+			db.setRecordIdIndexes(recordIds);
+			assertEquals(40, db.lookup("c", 7).size());
+			assertEquals(80, db.lookupAll("c", new int[] {7, 8}).size());
+			assertTrue(db.modify(createTestRecord(7, 8, 8)));
+			assertEquals(41, db.lookup("c", 8).size());
+			assertTrue(db.modify(createTestRecord(7, 8, 7)));
+		}
+		db.deleteIndex("c");
+		assertFalse(new File(hashFilename).exists());
+		db.close();
+	}
+	
+	@Test
+	void testIndexRestore() {
+		// indexes are saved by close() and restored by open(), and are
+		// rebuilt if the database was not closed
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("c");
+		db.createBTreeIndex("b");
+		int numRecords = 5000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 100));
+		}
+		db.bulkLoad(recs.iterator());
+		db.setRecordIdIndexes(false);
+		db.close();
+		assertTrue(new File(dbFilename + ".a.pk").exists());
+		assertTrue(new File(dbFilename + ".c.ord").exists());
+
+		db = HeapDB.open(dbFilename);
+		assertEquals(50, db.lookup("c", 7).size());
+		assertEquals(500, db.lookupRange("c", 10, 19).size());
+		assertEquals(100, ((IntField)db.lookup("b", 101).get(0).get(0)).getValue());
+		assertTrue(db.delete(107));
+		assertFalse(db.insert(createTestRecord(7, 0, 0)));
+		db.close();
+
+		// the files are now out of date, so a crash makes open() rebuild
+		db = HeapDB.open(dbFilename);
+		assertEquals(49, db.lookup("c", 7).size());
+		assertTrue(db.insert(createTestRecord(numRecords+7, 0, 7)));
+		db.sync();
+		HeapDB recovered = HeapDB.open(dbFilename);
+		assertEquals(50, recovered.lookup("c", 7).size());
+		assertEquals(1, recovered.lookup("b", 0).size());
+		assertTrue(recovered.lookup(numRecords+7) != null);
+		recovered.deleteIndex("c");
+		recovered.close();
+		assertFalse(new File(dbFilename + ".c.ord").exists());
+
+		recovered = HeapDB.open(dbFilename);
+		assertEquals(50, recovered.lookup("c", 7).size());
+		assertEquals(1, recovered.lookup("b", 8).size());
+		recovered.close();
+	}
+
+	@Test
+	void testWriteAfterCrash() {
+		// the first write after a crash restores the indexes before it
+		// changes the heap, so the rebuild scan doesn't add its record twice
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		db.createOrderedIndex("c");
+		for (int key = 1; key <= 100; key++) {
+			assertTrue(db.insert(createTestRecord(key, key+1, key % 10)));
+		}
+		db.sync();
+
+		HeapDB recovered = HeapDB.open(dbFilename);
+		assertTrue(recovered.insert(createTestRecord(1000, 0, 77)));
+		assertEquals(1, recovered.lookupRange("c", 77, 77).size());
+		assertEquals(1, recovered.lookup("c", 77).size());
+		assertEquals(101, recovered.size());
+		recovered.close();
+
+		recovered = HeapDB.open(dbFilename);
+		assertEquals(101, recovered.lookupRange("c", 0, 100).size());
+		assertEquals(101, recovered.size());
+		recovered.close();
+	}
+	
+	@Test
+	void testOnlineIndexBuild() throws InterruptedException {
+		// a writer keeps changing field c while indexes on it are built
+		// online; the published indexes must match the records
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 100000;
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, key+1, key % 50));
+		}
+		db.bulkLoad(recs.iterator());
+		db.setOnlineIndexBuilds(true);
+
+		AtomicBoolean done = new AtomicBoolean();
+		int[] numWrites = new int[1];
+		Thread writer = new Thread(() -> {
+			Random r = new Random(1);
+			int nextKey = numRecords + 1;
+			while (!done.get()) {
+				int key = r.nextInt(numRecords) + 1;
+				switch (r.nextInt(3)) {
+				case 0:
+					db.insert(createTestRecord(nextKey, 0, r.nextInt(50)));
+					nextKey++;
+					break;
+				case 1:
+					db.delete(key);
+					break;
+				default:
+					db.modify(createTestRecord(key, 0, r.nextInt(50)));
+				}
+				numWrites[0]++;
+			}
+		});
+		writer.start();
+		db.createOrderedIndex("c");
+		db.createHashIndex("c");
+		db.createBTreeIndex("c");
+		done.set(true);
+		writer.join();
+		System.out.println(numWrites[0]+" writes during online index builds");
+
+		int[] counts = new int[50];
+		for (Record r : db) {
+			counts[((IntField)r.get(2)).getValue()]++;
+		}
+		for (int c = 0; c < 50; c++) {
+			assertEquals(counts[c], db.lookup("c", c).size());
+		}
+		db.close();
+	}
+	
+	@Test
+	void testZoneMaps() {
+		// a scan on an unindexed field that follows insertion order reads
+		// only the blocks whose values may match
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 50000;
+		Random r = new Random(3);
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, r.nextInt(1000), key / 10));
+		}
+		db.bulkLoad(recs.iterator());
+		for (int key = numRecords+1; key <= numRecords+100; key++) {
+			assertTrue(db.insert(createTestRecord(key, 0, key / 10)));
+		}
+
+		BufferPool pool = db.getBufferPool();
+		long pins = pool.getHits() + pool.getMisses();
+		assertEquals(10, db.lookup("c", 2500).size());
+		assertEquals(1000, db.lookupRange("c", 2500, 2599).size());
+		long prunedPins = pool.getHits() + pool.getMisses() - pins;
+		pins = pool.getHits() + pool.getMisses();
+		db.lookup("b", 500);
+		long fullPins = pool.getHits() + pool.getMisses() - pins;
+		System.out.println("zone map scan: "+prunedPins+" pins, full scan: "+fullPins+" pins");
+		assertTrue(prunedPins * 10 < fullPins);
+
+		// summaries follow deletes and modifies
+		assertTrue(db.modify(createTestRecord(25001, 0, 7)));
+		assertEquals(11, db.lookup("c", 7).size());
+		assertEquals(9, db.lookup("c", 2500).size());
+		assertTrue(db.delete(25001));
+		assertEquals(10, db.lookup("c", 7).size());
+		db.close();
+
+		// the zone map is saved by close(), and rebuilt after a crash
+		db = HeapDB.open(dbFilename);
+		assertEquals(999, db.lookupRange("c", 2500, 2599).size());
+		assertTrue(db.insert(createTestRecord(numRecords+1000, 0, -5)));
+		db.sync();
+		HeapDB recovered = HeapDB.open(dbFilename);
+		assertEquals(1, recovered.lookup("c", -5).size());
+		assertEquals(10, recovered.lookupAll("c", new int[] {-5, 2500}).size());
+		recovered.close();
+	}
+
+	@Test
+	void testBloomFilters() {
+		// a lookup on an unindexed field whose values are spread over every
+		// block reads only the blocks whose filters contain the value
+		fixOpenFile();
+		String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+
+		Record rec = createTestRecord(0,1,2);
+		HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+		int numRecords = 50000;
+		Random r = new Random(5);
+		List<Record> recs = Lists.newArrayList();
+		for (int key = 1; key <= numRecords; key++) {
+			recs.add(createTestRecord(key, r.nextInt(100000), key));
+		}
+		db.bulkLoad(recs.iterator());
+		int value = ((IntField) recs.get(123).get(1)).getValue();
+		int expected = db.lookup("b", value).size();
+		assertTrue(expected >= 1);
+
+		BufferPool pool = db.getBufferPool();
+		long pins = pool.getHits() + pool.getMisses();
+		db.lookup("b", value);
+		long fullPins = pool.getHits() + pool.getMisses() - pins;
+		db.createBloomFilter("b");
+		pins = pool.getHits() + pool.getMisses();
+		assertEquals(expected, db.lookup("b", value).size());
+		long filteredPins = pool.getHits() + pool.getMisses() - pins;
+		System.out.println("Bloom filter scan: "+filteredPins+" pins, full scan: "+fullPins+" pins");
+		assertTrue(filteredPins * 10 < fullPins);
+
+		// filters follow inserts and modifies, and keep deleted values
+		// until they are rebuilt
+		assertTrue(db.insert(createTestRecord(numRecords+1, -7, 0)));
+		assertEquals(1, db.lookup("b", -7).size());
+		assertTrue(db.modify(createTestRecord(25000, -8, 0)));
+		assertEquals(1, db.lookup("b", -8).size());
+		assertTrue(db.delete(numRecords+1));
+		assertEquals(0, db.lookup("b", -7).size());
+		db.rebuildBloomFilter("b");
+		assertEquals(1, db.lookup("b", -8).size());
+		assertThrows(IllegalArgumentException.class, () -> db.createBloomFilter("b", 0));
+		db.close();
+
+		// the filters are saved by close(), and rebuilt after a crash
+		HeapDB reopened = HeapDB.open(dbFilename);
+		assertEquals(expected, reopened.lookup("b", value).size());
+		assertTrue(reopened.insert(createTestRecord(numRecords+2, -9, 0)));
+		reopened.sync();
+		HeapDB recovered = HeapDB.open(dbFilename);
+		assertEquals(1, recovered.lookup("b", -9).size());
+		assertEquals(1, recovered.lookup("b", -8).size());
+		recovered.deleteBloomFilter("b");
+		assertEquals(expected, recovered.lookup("b", value).size());
+		recovered.close();
+	}
+	
+	@Test
+	void testDurabilityThroughput() throws InterruptedException {
+		// insert throughput at each durability level, with several
+		// writers so that forces of the log can be shared
+		int numThreads = 4;
+		int insertsPerThread = 500;
+		for (Durability durability : Durability.values()) {
+			fixOpenFile();
+			String dbFilename = "C:\\Users\\Chef\\eclipse-workspace\\project\\src\\test\\this.txt";
+			Record rec = createTestRecord(0,1,2);
+			HeapDB db = new HeapDB(dbFilename, rec.getSchema());
+			db.setDurability(durability);
+
+			Thread[] threads = new Thread[numThreads];
+			for (int t = 0; t < numThreads; t++) {
+				final int first = t*insertsPerThread + 1;
+				threads[t] = new Thread(() -> {
+					for (int key = first; key < first + insertsPerThread; key++) {
+						db.insert(createTestRecord(key, key+1, 0));
+					}
+				});
+			}
+			long startTime = System.nanoTime();
+			for (Thread t : threads) {
+				t.start();
+			}
+			for (Thread t : threads) {
+				t.join();
+			}
+			long endTime = System.nanoTime();
+			double seconds = (endTime - startTime) / 1e9;
+			System.out.println(durability+": "+(long)(numThreads*insertsPerThread/seconds)+" inserts/s, "
+					+db.getLog().getForces()+" log forces");
+			assertEquals(numThreads*insertsPerThread, db.size());
+			db.close();
+		}
+	}
+	
 	@Test
 	void testPrint() {
 		// test the print method
@@ -0,0 +1,106 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.LinearHashIndex;
+
+class LinearHashIndexTest {
+
+	static final String filename = "linearhashindextest.idx";
+
+	LinearHashIndex idx;
+
+	@BeforeEach
+	void init() {
+		// a small pool, so that pages are written back and read again
+		idx = LinearHashIndex.create(filename, 16);
+		idx.insert(1, 1);
+		idx.insert(1, 2);
+		idx.insert(2, 3);
+		idx.insert(2, 1);
+		idx.insert(2, 2);
+		idx.insert(3, 1);
+		idx.insert(4, 2);
+	}
+
+	@AfterEach
+	void cleanup() {
+		idx.close();
+		new File(filename).delete();
+	}
+
+	@Test
+	void testLookup() {
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L)), new TreeSet<Long>(idx.lookup(1)));
+		assertEquals(new TreeSet<Long>(Arrays.asList(1L,2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		assertEquals(0, idx.lookup(6).size());
+
+		idx.insert(2, 1);
+		idx.delete(2, 1);
+		assertEquals(3, idx.lookup(2).size());
+		idx.delete(2, 1);
+		assertEquals(new TreeSet<Long>(Arrays.asList(2L,3L)), new TreeSet<Long>(idx.lookup(2)));
+		assertEquals(6, idx.size());
+	}
+
+	@Test
+	void testManyEntries() {
+		// enough entries for many splits and overflow pages, checked
+		// against a map from each key to its block numbers
+		Map<Integer, List<Long>> expected = new HashMap<Integer, List<Long>>();
+		for (int key = 1; key <= 4; key++) {
+			expected.put(key, new ArrayList<Long>(idx.lookup(key)));
+		}
+		expected.get(2).add(1L);
+		Random rand = new Random(42);
+		long size = idx.size();
+		for (int i = 0; i < 300000; i++) {
+			// a few keys have many entries, so their buckets overflow
+			int key = (i % 10 == 0) ? rand.nextInt(5) : rand.nextInt(100000);
+			long blockNum = rand.nextInt(1000);
+			List<Long> blocks = expected.computeIfAbsent(key, k -> new ArrayList<Long>());
+			if (rand.nextInt(3) == 0) {
+				idx.delete(key, blockNum);
+				if (blocks.remove(blockNum)) {
+					size--;
+				}
+			} else {
+				idx.insert(key, blockNum);
+				blocks.add(blockNum);
+				size++;
+			}
+		}
+		assertTrue(idx.numBuckets() > 256);
+		checkAll(expected, size);
+
+		// the index is the same after it is closed and opened again
+		idx.close();
+		idx = LinearHashIndex.open(filename, 16);
+		checkAll(expected, size);
+	}
+
+	private void checkAll(Map<Integer, List<Long>> expected, long size) {
+		assertEquals(size, idx.size());
+		long[] dest = new long[4];
+		for (int key = -1; key <= 100000; key++) {
+			TreeSet<Long> distinct = new TreeSet<Long>(expected.getOrDefault(key, new ArrayList<Long>()));
+			List<Long> result = idx.lookup(key);
+			assertEquals(distinct.size(), result.size());
+			assertEquals(distinct, new TreeSet<Long>(result));
+			assertEquals(distinct.size(), idx.lookup(key, dest));
+		}
+	}
+}
@@ -2,8 +2,13 @@ package test;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.TreeSet;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -32,16 +37,16 @@ class OrdIndexTest {
 
 	@Test
 	void testLookup() {
-		List<Integer> result = idx.lookup(1);
-		List<Integer> expected = Arrays.asList(1,2);
+		List<Long> result = idx.lookup(1);
+		List<Long> expected = Arrays.asList(1L,2L);
 		assertTrue(result.size() == 2 && result.containsAll(expected));
 		
 		result = idx.lookup(2);
-		expected = Arrays.asList(1,2,3);
+		expected = Arrays.asList(1L,2L,3L);
 		assertTrue(result.size() == 3 && result.containsAll(expected));
 		
 		result = idx.lookup(4);
-		expected = Arrays.asList(2);
+		expected = Arrays.asList(2L);
 		assertTrue(result.size() == 1 && result.containsAll(expected));
 		
 		result = idx.lookup(6);
@@ -61,15 +66,15 @@ class OrdIndexTest {
 		
 		idx.delete(2, 2);
 		idx.delete(2, 3);
-		List<Integer> result = idx.lookup(2);
+		List<Long> result = idx.lookup(2);
 		assertTrue(result.size() == 0);
 	}
 
 	@Test
 	void testDeleteLookup() {
 		idx.insert(2, 1);
-		List<Integer> result = idx.lookup(2);
-		List<Integer> expected = Arrays.asList(1,2,3);
+		List<Long> result = idx.lookup(2);
+		List<Long> expected = Arrays.asList(1L,2L,3L);
 		assertTrue(result.size() == 3 && result.containsAll(expected));
 		
 		idx.delete(2, 1);
@@ -78,6 +83,147 @@ class OrdIndexTest {
 
 		idx.delete(2, 1);
 		result = idx.lookup(2);
-		expected = Arrays.asList(2,3);
+		expected = Arrays.asList(2L,3L);
 		assertTrue(result.size() == 2 && result.containsAll(expected));	}
+
+	@Test
+	void testInsertAll() {
+		// bulk insert into a non-empty index, with new and existing keys
+		int[] keys = {5, 2, 0, 2, 5};
+		long[] blockNums = {1, 4, 3, 5, 1};
+		idx.insertAll(keys, blockNums, keys.length);
+		assertTrue(idx.size() == 12);
+		
+		List<Long> result = idx.lookup(2);
+		List<Long> expected = Arrays.asList(1L,2L,3L,4L,5L);
+		assertTrue(result.size() == 5 && result.containsAll(expected));
+		
+		result = idx.lookup(5);
+		assertTrue(result.size() == 1 && result.contains(1L));
+		
+		result = idx.lookup(0);
+		assertTrue(result.size() == 1 && result.contains(3L));
+	}
+
+	@Test
+	void testRangeIterator() {
+		// entries come back in key order, duplicates included
+		List<Long> result = new ArrayList<Long>();
+		idx.rangeIterator(2, 3).forEachRemaining(result::add);
+		assertEquals(Arrays.asList(1L,2L,3L,1L), result);
+		
+		result.clear();
+		idx.rangeIterator(0, 1).forEachRemaining(result::add);
+		assertEquals(Arrays.asList(1L,2L), result);
+		
+		Iterator<Long> it = idx.rangeIterator(5, 9);
+		assertFalse(it.hasNext());
+		it = idx.rangeIterator(3, 2);
+		assertFalse(it.hasNext());
+	}
+
+	@Test
+	void testManyEntries() {
+		// enough random inserts and deletes to split and empty many nodes,
+		// checked against a map from each key to its block numbers
+		idx = new OrdIndex();
+		TreeMap<Integer, List<Long>> expected = new TreeMap<Integer, List<Long>>();
+		Random rand = new Random(42);
+		int size = 0;
+		for (int i = 0; i < 200000; i++) {
+			int key = rand.nextInt(2000);
+			long blockNum = rand.nextInt(50);
+			List<Long> blocks = expected.computeIfAbsent(key, k -> new ArrayList<Long>());
+			if (rand.nextInt(3) == 0) {
+				idx.delete(key, blockNum);
+				if (blocks.remove(blockNum)) {
+					size--;
+				}
+			} else {
+				idx.insert(key, blockNum);
+				blocks.add(blockNum);
+				size++;
+			}
+		}
+		assertEquals(size, idx.size());
+		
+		long[] dest = new long[50];
+		for (int key = -1; key <= 2000; key++) {
+			List<Long> blocks = expected.getOrDefault(key, new ArrayList<Long>());
+			List<Long> distinct = new ArrayList<Long>(new TreeSet<Long>(blocks));
+			assertEquals(distinct, idx.lookup(key));
+			int n = idx.lookup(key, dest);
+			assertEquals(distinct.size(), n);
+			for (int i = 0; i < n; i++) {
+				assertEquals(distinct.get(i), dest[i]);
+			}
+		}
+		
+		List<Long> range = new ArrayList<Long>();
+		idx.rangeIterator(500, 599).forEachRemaining(range::add);
+		int rangeSize = 0;
+		for (List<Long> blocks : expected.subMap(500, 600).values()) {
+			rangeSize += blocks.size();
+		}
+		assertEquals(rangeSize, range.size());
+	}
+	
+	@Test
+	void testInsertAllInOrder() {
+		// pairs added past the end of the index fill whole leaves
+		idx = new OrdIndex();
+		int n = 100000;
+		int[] keys = new int[n];
+		long[] blockNums = new long[n];
+		for (int i = 0; i < n; i++) {
+			keys[i] = i / 3;
+			blockNums[i] = i % 3;
+		}
+		idx.insertAll(keys, blockNums, n);
+		idx.insertAll(keys, blockNums, n);
+		assertEquals(2*n, idx.size());
+		assertEquals(Arrays.asList(0L,1L,2L), idx.lookup(1234));
+		long[] dest = new long[2];
+		assertEquals(3, idx.lookup(1234, dest));
+		assertEquals(1L, dest[1]);
+	}
+	
+	@Test
+	void testBulkBuild() {
+		// an index built from unsorted pairs must match one built by
+		// inserting them, and take further inserts and deletes
+		Random rand = new Random(7);
+		int n = 50000;
+		int[] keys = new int[n];
+		long[] blockNums = new long[n];
+		TreeMap<Integer, TreeSet<Long>> expected = new TreeMap<>();
+		for (int i = 0; i < n; i++) {
+			keys[i] = rand.nextInt(5000);
+			blockNums[i] = rand.nextInt(100);
+			expected.computeIfAbsent(keys[i], k -> new TreeSet<>()).add(blockNums[i]);
+		}
+		idx = new OrdIndex();
+		idx.insertAll(keys, blockNums, n);
+		assertEquals(n, idx.size());
+		for (int i = 0; i < 1000; i++) {
+			idx.insert(keys[i], 1000 + i);
+			expected.get(keys[i]).add(1000L + i);
+		}
+		for (int key = 0; key < 5000; key += 37) {
+			TreeSet<Long> vals = expected.getOrDefault(key, new TreeSet<>());
+			assertEquals(new ArrayList<>(vals), idx.lookup(key));
+		}
+		int count = 0;
+		for (Iterator<Long> it = idx.rangeIterator(100, 199); it.hasNext(); it.next()) {
+			count++;
+		}
+		int expectedCount = 0;
+		for (int i = 0; i < n; i++) {
+			expectedCount += (keys[i] >= 100 && keys[i] <= 199) ? 1 : 0;
+		}
+		for (int i = 0; i < 1000; i++) {
+			expectedCount += (keys[i] >= 100 && keys[i] <= 199) ? 1 : 0;
+		}
+		assertEquals(expectedCount, count);
+	}
 }
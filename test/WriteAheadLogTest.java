@@ -0,0 +1,48 @@
+package test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.io.File;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import disk_store.WriteAheadLog;
+
+class WriteAheadLogTest {
+
+	static final String filename = "waltest.log";
+
+	@AfterEach
+	void cleanup() {
+		new File(filename).delete();
+	}
+
+	@Test
+	void testFlushAndReplay() {
+		WriteAheadLog log = WriteAheadLog.create(filename);
+		byte[] data = {1, 2, 3};
+		log.append(WriteAheadLog.INSERT, 7, 0, data, 0, data.length);
+		long lsn = log.append(WriteAheadLog.DELETE, 8, 1, data, 0, 0);
+		log.flush(lsn);
+		log.close();
+
+		log = WriteAheadLog.open(filename);
+		int[] count = new int[1];
+		assertEquals(2, log.replay((type, blockNum, slot, d) -> count[0]++));
+		assertEquals(2, count[0]);
+		log.close();
+	}
+
+	@Test
+	void testFailedFlush() {
+		// after a flush fails, nothing more is reported durable
+		WriteAheadLog log = WriteAheadLog.create(filename);
+		byte[] data = {1, 2, 3};
+		long lsn = log.append(WriteAheadLog.INSERT, 7, 0, data, 0, data.length);
+		log.close();
+		assertThrows(IllegalStateException.class, () -> log.flush(lsn));
+		assertThrows(IllegalStateException.class, () -> log.flush(lsn));
+		assertThrows(IllegalStateException.class, () -> log.append(WriteAheadLog.INSERT, 7, 1, data, 0, data.length));
+	}
+}